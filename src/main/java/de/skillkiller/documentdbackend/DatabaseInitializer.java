@@ -1,11 +1,8 @@
 package de.skillkiller.documentdbackend;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import de.skillkiller.documentdbackend.entity.User;
 import de.skillkiller.documentdbackend.search.DocumentSearch;
 import de.skillkiller.documentdbackend.search.UserSearch;
-import kong.unirest.Unirest;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,19 +20,17 @@ public class DatabaseInitializer {
 
     private final UserSearch userSearch;
     private final DocumentSearch documentSearch;
-    private final ObjectMapper objectMapper;
     private final PasswordEncoder passwordEncoder;
     private static final Logger logger = LoggerFactory.getLogger(DatabaseInitializer.class);
 
     private final String firstUserUsername;
     private final String firstUserPassword;
 
-    public DatabaseInitializer(UserSearch userSearch, DocumentSearch documentSearch, ObjectMapper objectMapper, PasswordEncoder passwordEncoder,
+    public DatabaseInitializer(UserSearch userSearch, DocumentSearch documentSearch, PasswordEncoder passwordEncoder,
                                @Value("${firstuser.username:admin}") String firstUserUsername,
                                @Value("${firstuser.password:${random.value}}") String firstUserPassword) {
         this.userSearch = userSearch;
         this.documentSearch = documentSearch;
-        this.objectMapper = objectMapper;
         this.passwordEncoder = passwordEncoder;
         this.firstUserUsername = firstUserUsername;
         this.firstUserPassword = firstUserPassword;
@@ -43,27 +38,6 @@ public class DatabaseInitializer {
 
     @EventListener(ApplicationReadyEvent.class)
     public void doSomethingAfterStartup() {
-        Unirest.config().setObjectMapper(new kong.unirest.ObjectMapper() {
-
-            @Override
-            public String writeValue(Object value) {
-                try {
-                    return objectMapper.writeValueAsString(value);
-                } catch (JsonProcessingException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-
-            @Override
-            public <T> T readValue(String value, Class<T> valueType) {
-                try {
-                    return objectMapper.readValue(value, valueType);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        });
-
         try {
             logger.trace("Create user index if not exists: " + userSearch.createUserIndex());
             logger.trace("Create document index if not exists: " + documentSearch.createDocumentIndex());
@@ -93,5 +67,7 @@ public class DatabaseInitializer {
             }
 
         }
+
+        userSearch.rebuildLookupIndex();
     }
 }
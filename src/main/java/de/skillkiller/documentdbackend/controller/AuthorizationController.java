@@ -6,16 +6,20 @@ import de.skillkiller.documentdbackend.entity.UserDetailsHolder;
 import de.skillkiller.documentdbackend.entity.http.frontend.request.AuthenticationRequest;
 import de.skillkiller.documentdbackend.entity.http.frontend.request.AuthenticationWithTokenRequest;
 import de.skillkiller.documentdbackend.search.UserSearch;
+import de.skillkiller.documentdbackend.service.LoginThrottleService;
+import de.skillkiller.documentdbackend.service.PasswordHashingService;
 import de.skillkiller.documentdbackend.util.JWTUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.InternalAuthenticationServiceException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 
+import javax.servlet.http.HttpServletRequest;
 import java.util.Date;
 import java.util.Optional;
 
@@ -27,25 +31,45 @@ public class AuthorizationController {
     private final JWTUtil jwtUtil;
     private final AuthenticationManager authenticationManager;
     private final UserSearch userSearch;
+    private final LoginThrottleService loginThrottleService;
 
-    public AuthorizationController(JWTUtil jwtUtil, AuthenticationManager authenticationManager, UserSearch userSearch) {
+    public AuthorizationController(JWTUtil jwtUtil, AuthenticationManager authenticationManager, UserSearch userSearch,
+                                   LoginThrottleService loginThrottleService) {
         this.jwtUtil = jwtUtil;
         this.authenticationManager = authenticationManager;
         this.userSearch = userSearch;
+        this.loginThrottleService = loginThrottleService;
     }
 
     @PostMapping(value = "/login")
-    public ResponseEntity<User> login(@RequestBody AuthenticationRequest authenticationRequest) {
+    public ResponseEntity<User> login(@RequestBody AuthenticationRequest authenticationRequest, HttpServletRequest request) {
         logger.debug("Received Login Request");
+        String username = authenticationRequest.getUsername();
+        String address = request.getRemoteAddr();
+        if (loginThrottleService.isThrottled(username, address)) {
+            logger.warn("Throttled login of " + username + " from " + address);
+            return ResponseEntity.status(429).header("Retry-After", "60").build();
+        }
+
         try {
             Authentication authentication = authenticationManager.authenticate(
-                    new UsernamePasswordAuthenticationToken(authenticationRequest.getUsername(), authenticationRequest.getPassword())
+                    new UsernamePasswordAuthenticationToken(username, authenticationRequest.getPassword())
             );
+            loginThrottleService.loginSucceeded(username);
             User user = ((UserDetailsHolder) authentication.getPrincipal()).getAuthenticatedUser();
             return ResponseEntity.ok().header("Token", jwtUtil.generateToken(user))
                     .body(user);
         } catch (BadCredentialsException e) {
+            loginThrottleService.loginFailed(username, address);
             return ResponseEntity.status(403).build();
+        } catch (PasswordHashingService.RejectedException e) {
+            return ResponseEntity.status(429).header("Retry-After", "1").build();
+        } catch (InternalAuthenticationServiceException e) {
+            // Unknown usernames are hashed against a dummy password as well, the provider wraps that rejection
+            if (e.getCause() instanceof PasswordHashingService.RejectedException) {
+                return ResponseEntity.status(429).header("Retry-After", "1").build();
+            }
+            throw e;
         }
     }
 
@@ -2,151 +2,198 @@ package de.skillkiller.documentdbackend.controller;
 
 import de.skillkiller.documentdbackend.entity.AccessToken;
 import de.skillkiller.documentdbackend.entity.Document;
+import de.skillkiller.documentdbackend.entity.IngestJob;
+import de.skillkiller.documentdbackend.entity.OcrJob;
 import de.skillkiller.documentdbackend.entity.User;
 import de.skillkiller.documentdbackend.entity.UserDetailsHolder;
 import de.skillkiller.documentdbackend.entity.http.frontend.response.UpdateDocumentResponse;
 import de.skillkiller.documentdbackend.entity.http.meilisearch.response.SearchResponse;
 import de.skillkiller.documentdbackend.search.DocumentSearch;
-import de.skillkiller.documentdbackend.search.UserSearch;
+import de.skillkiller.documentdbackend.search.SearchResultCache;
 import de.skillkiller.documentdbackend.service.AccessTokenService;
-import de.skillkiller.documentdbackend.task.PDFOCR;
+import de.skillkiller.documentdbackend.service.IngestService;
+import de.skillkiller.documentdbackend.service.OcrQueueService;
+import de.skillkiller.documentdbackend.service.UserFacetService;
 import de.skillkiller.documentdbackend.util.FileUtil;
-import org.apache.commons.codec.digest.DigestUtils;
-import org.apache.commons.io.FileUtils;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.CacheControl;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 @RestController
 @RequestMapping("document")
 @CrossOrigin(methods = {RequestMethod.POST, RequestMethod.GET, RequestMethod.DELETE}, origins = {"*"})
 public class DocumentController {
 
-    private static final ExecutorService executorService = Executors.newFixedThreadPool(3);
     private static final Logger logger = LoggerFactory.getLogger(DocumentController.class);
-    private final UserSearch userSearch;
+    // Archive imports must not delay the OCR of single uploads and mails
+    private static final OcrJob.Priority BATCH_OCR_PRIORITY = OcrJob.Priority.BACKFILL;
+    private static final ZoneId DOCUMENT_TIME_ZONE = ZoneId.of("Europe/Berlin");
     private final DocumentSearch documentSearch;
     private final FileUtil fileUtil;
     private final AccessTokenService accessTokenService;
-    private final String tesseractDataPath;
-    private final String tesseractLanguage;
-
-    public DocumentController(UserSearch userSearch, DocumentSearch documentSearch, FileUtil fileUtil, AccessTokenService accessTokenService,
-                              @Value("${tesseract.datapath}") String tesseractDataPath,
-                              @Value("${tesseract.language}") String tesseractLanguage) {
-        this.userSearch = userSearch;
+    private final IngestService ingestService;
+    private final OcrQueueService ocrQueueService;
+    private final SearchResultCache searchResultCache;
+    private final UserFacetService userFacetService;
+
+    public DocumentController(DocumentSearch documentSearch, FileUtil fileUtil, AccessTokenService accessTokenService,
+                              IngestService ingestService, OcrQueueService ocrQueueService, SearchResultCache searchResultCache,
+                              UserFacetService userFacetService) {
         this.documentSearch = documentSearch;
         this.fileUtil = fileUtil;
         this.accessTokenService = accessTokenService;
-        this.tesseractDataPath = tesseractDataPath;
-        this.tesseractLanguage = tesseractLanguage;
+        this.ingestService = ingestService;
+        this.ocrQueueService = ocrQueueService;
+        this.searchResultCache = searchResultCache;
+        this.userFacetService = userFacetService;
     }
 
     // TODO Add Display All
     @GetMapping("search")
-    public SearchResponse searchForDocuments(Authentication authentication, @RequestParam("search") String search,
-                                             @RequestParam int pageNumber, @RequestParam int pageSize) {
+    public SearchResponse<? extends Document> searchForDocuments(Authentication authentication, @RequestParam("search") String search,
+                                                               @RequestParam int pageNumber, @RequestParam int pageSize,
+                                                               @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate dateFrom,
+                                                               @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate dateTo) {
         User authenticatedUser = ((UserDetailsHolder) authentication.getPrincipal()).getAuthenticatedUser();
+        String userId = authenticatedUser.getId();
         int offset = pageNumber * pageSize;
-        SearchResponse searchResponse = null;
+        // Both days are inclusive
+        Long dateFromTimestamp = dateFrom == null ? null : dateFrom.atStartOfDay(DOCUMENT_TIME_ZONE).toEpochSecond();
+        Long dateToTimestamp = dateTo == null ? null : dateTo.plusDays(1).atStartOfDay(DOCUMENT_TIME_ZONE).toEpochSecond();
+        boolean dateRange = dateFrom != null || dateTo != null;
+
+        SearchResponse<? extends Document> searchResponse = null;
         if (search.equals("")) {
-            searchResponse = documentSearch.searchForTopDocumentsInUserScope(authenticatedUser.getId(), offset, pageSize);
+            searchResponse = searchResultCache.get(userId, search, dateFromTimestamp, dateToTimestamp, offset, pageSize, false,
+                    () -> documentSearch.searchForTopDocumentsInUserScope(userId, offset, pageSize, dateFromTimestamp, dateToTimestamp));
         }
 
-        if (search.equals("all") || (search.equals("") && searchResponse.getNbHits() == 0)) {
-            searchResponse = documentSearch.getDocumentsAsSearchResponse(offset, pageSize);
+        // The listing of all documents knows no date range
+        if (search.equals("all") || (search.equals("") && searchResponse.getNbHits() == 0 && !dateRange)) {
+            searchResponse = searchResultCache.get(userId, "all", null, null, offset, pageSize, true,
+                    () -> documentSearch.getDocumentsAsSearchResponse(offset, pageSize));
         }
 
         if (searchResponse == null) {
-            searchResponse = documentSearch.searchForDocumentInUserScope(authenticatedUser.getId(), search, offset, pageSize);
+            searchResponse = searchResultCache.get(userId, search, dateFromTimestamp, dateToTimestamp, offset, pageSize, false,
+                    () -> documentSearch.searchForDocumentInUserScope(userId, search, offset, pageSize, dateFromTimestamp, dateToTimestamp));
         }
         return searchResponse;
     }
 
     @RequestMapping(value = "/upload", method = RequestMethod.POST)
     public @ResponseBody
-    ResponseEntity<Document> handleFileUpload(Authentication authentication, @RequestParam("file") MultipartFile multipartFile) {
+    ResponseEntity<IngestJob> handleFileUpload(Authentication authentication, @RequestParam("file") MultipartFile multipartFile) {
         User authenticatedUser = ((UserDetailsHolder) authentication.getPrincipal()).getAuthenticatedUser();
         if (!multipartFile.isEmpty()) {
-            Document document = new Document();
-            try {
-                byte[] bytes = multipartFile.getBytes();
-                File tempFile = File.createTempFile(authenticatedUser.getId(), "upload");
-                FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
-                BufferedOutputStream stream =
-                        new BufferedOutputStream(fileOutputStream);
-                stream.write(bytes);
-                stream.close();
-                fileOutputStream.close();
-                PDDocument pdfDocument = PDDocument.load(tempFile);
-
-                document.setUserId(authenticatedUser.getId());
-                document.setPages(pdfDocument.getNumberOfPages());
-                document.setDocumentDate(new Date());
-                document.setPdfTitle(pdfDocument.getDocumentInformation().getTitle());
-                // TODO Check for duplicates
-                document.setId(DigestUtils.sha1Hex(System.currentTimeMillis() + "#" + authenticatedUser.getId() + "#" + document.getPdfTitle()));
-                String title = multipartFile.getOriginalFilename();
-                if (title != null && title.contains(".")) {
-                    title = title.substring(0, title.lastIndexOf("."));
-                }
-                document.setTitle(title);
+            try (InputStream inputStream = multipartFile.getInputStream()) {
+                IngestJob ingestJob = ingestService.submit(authenticatedUser, inputStream, multipartFile.getOriginalFilename(), OcrJob.Priority.INTERACTIVE);
+                return ResponseEntity.status(202).body(ingestJob);
+            } catch (IngestService.RejectedException e) {
+                return ResponseEntity.status(503).header("Retry-After", "30").build();
+            } catch (IOException e) {
+                logger.error("Something go wrong by upload", e);
+                return ResponseEntity.status(500).build();
+            }
+        } else {
+            return ResponseEntity.badRequest().build();
+        }
+    }
 
-                PDFTextStripper pdfTextStripper = new PDFTextStripper();
-                String content = pdfTextStripper.getText(pdfDocument);
-                if (!content.isBlank()) {
-                    document.setTextContent(content);
+    @PostMapping("/upload/batch")
+    public ResponseEntity<List<IngestJob>> handleBatchUpload(Authentication authentication, @RequestParam("files") MultipartFile[] multipartFiles) {
+        User authenticatedUser = ((UserDetailsHolder) authentication.getPrincipal()).getAuthenticatedUser();
+        if (ingestService.isBatchSaturated()) return ResponseEntity.status(503).header("Retry-After", "60").build();
+        List<IngestJob> stagedJobs = new ArrayList<>();
+        try {
+            for (MultipartFile multipartFile : multipartFiles) {
+                if (multipartFile.isEmpty()) continue;
+                String originalFilename = multipartFile.getOriginalFilename();
+                try (InputStream inputStream = multipartFile.getInputStream()) {
+                    if (originalFilename != null && originalFilename.toLowerCase().endsWith(".zip")) {
+                        stageZipEntries(authenticatedUser, inputStream, stagedJobs);
+                    } else {
+                        stagedJobs.add(ingestService.stage(authenticatedUser, inputStream, originalFilename, BATCH_OCR_PRIORITY));
+                    }
                 }
-                pdfDocument.close();
-
-                String fileName = document.getId() + "-" + getAllowedFileName(multipartFile.getOriginalFilename());
-                if (!fileName.endsWith(".pdf")) fileName = fileName + ".pdf";
-
-                document.setFilename(fileName);
-                File saveDir = fileUtil.getBaseDirFromUser(authenticatedUser.getId());
-                saveDir.mkdirs();
-                File targetFile = fileUtil.getFile(document);
-                Files.move(tempFile.toPath(), targetFile.toPath());
+            }
+        } catch (IOException e) {
+            logger.error("Something go wrong by batch upload", e);
+            ingestService.discard(stagedJobs);
+            return ResponseEntity.status(500).build();
+        }
 
-                documentSearch.createOrReplaceDocument(document);
+        if (stagedJobs.isEmpty()) return ResponseEntity.badRequest().build();
+        try {
+            return ResponseEntity.status(202).body(ingestService.submitBatch(stagedJobs));
+        } catch (IngestService.RejectedException e) {
+            return ResponseEntity.status(503).header("Retry-After", "60").build();
+        }
+    }
 
-                if (document.getTextContent() == null) {
-                    executorService.execute(new PDFOCR(document, documentSearch, fileUtil, tesseractDataPath, tesseractLanguage));
-                }
+    private void stageZipEntries(User user, InputStream inputStream, List<IngestJob> stagedJobs) throws IOException {
+        ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+        ZipEntry zipEntry;
+        while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+            String entryName = zipEntry.getName();
+            if (!zipEntry.isDirectory() && entryName.toLowerCase().endsWith(".pdf") && !entryName.startsWith("__MACOSX/")) {
+                String originalFilename = entryName.substring(entryName.lastIndexOf('/') + 1);
+                // The shield keeps the ingest service from closing the archive after the first entry
+                stagedJobs.add(ingestService.stage(user, new CloseShieldInputStream(zipInputStream), originalFilename, BATCH_OCR_PRIORITY));
+            }
+            zipInputStream.closeEntry();
+        }
+    }
 
-                logger.debug("Uploaded and created Document " + document.getId());
-                if (document.getCompany().equals("null"))
-                    document.setCompany(null); // Hide string "null" value in upload response
-                return ResponseEntity.ok(document);
-            } catch (Exception e) {
-                logger.error("Something go wrong by upload", e);
-                try {
-                    documentSearch.deleteDocument(document.getId());
-                } catch (TimeoutException | InterruptedException timeoutException) {
-                    logger.error("Ran in timeout by deleting document", e);
-                }
+    @PostMapping("/reocr/{id:[\\d\\w]+}")
+    public ResponseEntity<Void> reOcrDocument(Authentication authentication, @PathVariable("id") String documentId) {
+        User authenticatedUser = ((UserDetailsHolder) authentication.getPrincipal()).getAuthenticatedUser();
+        Optional<Document> optionalDocument = documentSearch.getDocumentByIdAndUserId(documentId, authenticatedUser.getId());
+        if (optionalDocument.isPresent()) {
+            try {
+                ocrQueueService.enqueue(optionalDocument.get(), OcrJob.Priority.BACKFILL);
+            } catch (IOException e) {
+                logger.error("Cannot journal OCR job for document " + documentId, e);
                 return ResponseEntity.status(500).build();
             }
-        } else {
-            return ResponseEntity.badRequest().build();
+            return ResponseEntity.accepted().build();
+        }
+        return ResponseEntity.notFound().build();
+    }
+
+    @GetMapping("/jobs/{id:[\\d\\w]+}")
+    public ResponseEntity<IngestJob> getIngestJob(Authentication authentication, @PathVariable("id") String jobId) {
+        User authenticatedUser = ((UserDetailsHolder) authentication.getPrincipal()).getAuthenticatedUser();
+        Optional<IngestJob> optionalIngestJob = ingestService.getJob(jobId);
+        if (optionalIngestJob.isPresent() && optionalIngestJob.get().getUserId().equals(authenticatedUser.getId())) {
+            return ResponseEntity.ok(optionalIngestJob.get());
         }
+        return ResponseEntity.notFound().build();
+    }
+
+    // Search results leave out the text content, the detail view loads it on demand
+    @GetMapping("/detail/{id:[\\d\\w]+}")
+    public ResponseEntity<Document> getDocumentDetail(Authentication authentication, @PathVariable("id") String documentId) {
+        User authenticatedUser = ((UserDetailsHolder) authentication.getPrincipal()).getAuthenticatedUser();
+        Optional<Document> optionalDocument = documentSearch.getDocumentByIdAndUserId(documentId, authenticatedUser.getId());
+        return optionalDocument.map(ResponseEntity::ok).orElseGet(() -> ResponseEntity.notFound().build());
     }
 
     @PostMapping("update")
@@ -167,52 +214,14 @@ public class DocumentController {
 
             if (!document.getUserId().equals(authenticatedUser.getId())) return ResponseEntity.badRequest().build();
 
-            //Search for company und category difference
-            boolean userUpdates = false;
-
-            if (!(receivedDocument.getCompany() == null ? document.getCompany() == null : receivedDocument.getCompany().equals(document.getCompany()))) {
-                SearchResponse searchResponse = documentSearch.getDocumentsWithCompanyFilterInUserScope(authenticatedUser.getId(), document.getCompany());
-                Set<String> companies = authenticatedUser.getCompanies();
-                if (companies == null) companies = new HashSet<>();
-                if (searchResponse.getHits().size() <= 1) {
-                    if (document.getCompany() != null) companies.remove(document.getCompany());
-                    authenticatedUser.setCompanies(companies);
-                    userUpdates = true;
-                }
-
-                if (receivedDocument.getCompany() != null && !companies.contains(receivedDocument.getCompany())) {
-                    companies.add(receivedDocument.getCompany());
-                    authenticatedUser.setCompanies(companies);
-                    userUpdates = true;
-                }
-            }
-
-            if (!(receivedDocument.getCategory() == null ? document.getCategory() == null : receivedDocument.getCategory().equals(document.getCategory()))) {
-                SearchResponse searchResponse = documentSearch.getDocumentsWithCategoryFilterInUserScope(authenticatedUser.getId(), document.getCategory());
-                Set<String> categories = authenticatedUser.getCategories();
-                if (categories == null) categories = new HashSet<>();
-                if (searchResponse.getHits().size() <= 1) {
-                    if (document.getCategory() != null) categories.remove(document.getCategory());
-                    authenticatedUser.setCategories(categories);
-                    userUpdates = true;
-                }
-
-                if (receivedDocument.getCategory() != null && !categories.contains(receivedDocument.getCategory())) {
-                    categories.add(receivedDocument.getCategory());
-                    authenticatedUser.setCategories(categories);
-                    userUpdates = true;
-                }
-            }
-
-
             try {
-                if (userUpdates) {
-                    userSearch.createOrReplaceUser(authenticatedUser);
-                }
+                Document updatedDocument = withEditableFields(document, receivedDocument);
+                Optional<User> optionalUser = userFacetService.updateFacets(authenticatedUser.getId(), document, updatedDocument);
+                User user = optionalUser.orElse(authenticatedUser);
 
-                documentSearch.createOrReplaceDocument(receivedDocument);
+                documentSearch.createOrReplaceDocument(updatedDocument);
                 logger.debug("Updated document " + document.getId());
-                return ResponseEntity.ok(new UpdateDocumentResponse(document, authenticatedUser.getCompanies(), authenticatedUser.getCategories()));
+                return ResponseEntity.ok(new UpdateDocumentResponse(updatedDocument, user.getCompanies(), user.getCategories()));
             } catch (TimeoutException | InterruptedException e) {
                 logger.error("Ran in timeout during update document or user", e);
                 return ResponseEntity.status(503).build();
@@ -221,6 +230,29 @@ public class DocumentController {
 
     }
 
+    /**
+     * The stored document with the fields a user may edit taken from the received one. The client usually sends a
+     * search result, which has neither text content nor content hash, so everything else stays as stored.
+     */
+    private static Document withEditableFields(Document storedDocument, Document receivedDocument) {
+        Document document = new Document();
+        document.setId(storedDocument.getId());
+        document.setUserId(storedDocument.getUserId());
+        document.setFilename(storedDocument.getFilename());
+        document.setPages(storedDocument.getPages());
+        document.setTextContent(storedDocument.getTextContent());
+        document.setPdfTitle(storedDocument.getPdfTitle());
+        document.setContentHash(storedDocument.getContentHash());
+
+        document.setTitle(receivedDocument.getTitle());
+        document.setDocumentDate(receivedDocument.getDocumentDate());
+        document.setDeleteDate(receivedDocument.getDeleteDate());
+        document.setCompany(receivedDocument.getCompany());
+        document.setCategory(receivedDocument.getCategory());
+        if (receivedDocument.getTags() != null) document.setTags(receivedDocument.getTags());
+        return document;
+    }
+
     @DeleteMapping("/delete/{id:[\\d\\w]+}")
     public ResponseEntity<UpdateDocumentResponse> deleteDocument(Authentication authentication, @PathVariable("id") String documentId) {
         User authenticatedUser = ((UserDetailsHolder) authentication.getPrincipal()).getAuthenticatedUser();
@@ -228,48 +260,21 @@ public class DocumentController {
         Optional<Document> optionalDocument = documentSearch.getDocumentByIdAndUserId(documentId, authenticatedUser.getId());
         if (optionalDocument.isPresent()) {
             Document document = optionalDocument.get();
-            boolean delete = fileUtil.getFile(document).delete();
-            if (!delete) logger.warn("Delete from document file " + document.getId() + " failed!");
+            User user;
             try {
-                documentSearch.deleteDocument(document.getId());
+                // Counts are taken before the delete, the lookup for users without counts must still find the document
+                user = userFacetService.updateFacets(authenticatedUser.getId(), document, null).orElse(authenticatedUser);
+                documentSearch.deleteDocument(document);
             } catch (TimeoutException | InterruptedException e) {
                 logger.error("Ran in timeout during delete document", e);
                 return ResponseEntity.status(503).build();
             }
+            accessTokenService.revokeDocument(document.getId());
+            boolean delete = fileUtil.delete(document);
+            if (!delete) logger.warn("Delete from document file " + document.getId() + " failed!");
             logger.debug("Delete document " + documentId);
 
-            //Search for old company und category
-            boolean userUpdates = false;
-
-            if (document.getCategory() != null) {
-                SearchResponse searchResponse = documentSearch.getDocumentsWithCategoryFilterInUserScope(authenticatedUser.getId(), document.getCategory());
-                if (searchResponse.getHits().size() <= 1) {
-                    final Set<String> categories = authenticatedUser.getCategories();
-                    categories.remove(document.getCategory());
-                    authenticatedUser.setCategories(categories);
-                    userUpdates = true;
-                }
-            }
-
-            if (document.getCompany() != null) {
-                SearchResponse searchResponse = documentSearch.getDocumentsWithCompanyFilterInUserScope(authenticatedUser.getId(), document.getCompany());
-                if (searchResponse.getHits().size() <= 1) {
-                    final Set<String> companies = authenticatedUser.getCompanies();
-                    companies.remove(document.getCompany());
-                    authenticatedUser.setCompanies(companies);
-                    userUpdates = true;
-                }
-            }
-
-            if (userUpdates) {
-                try {
-                    userSearch.createOrReplaceUser(authenticatedUser);
-                } catch (TimeoutException | InterruptedException e) {
-                    logger.error("Ran in timeout during update user autocompletion after document delete");
-                }
-            }
-
-            return ResponseEntity.ok(new UpdateDocumentResponse(null, authenticatedUser.getCompanies(), authenticatedUser.getCategories()));
+            return ResponseEntity.ok(new UpdateDocumentResponse(null, user.getCompanies(), user.getCategories()));
         }
         return ResponseEntity.notFound().build();
     }
@@ -281,28 +286,41 @@ public class DocumentController {
         if (optionalDocument.isPresent()) {
             AccessToken accessToken = new AccessToken();
             accessToken.setDocumentId(optionalDocument.get().getId());
+            accessToken.setUserId(authenticatedUser.getId());
 
             Calendar date = Calendar.getInstance();
             long t = date.getTimeInMillis();
-            Date afterAddingTenMin = new Date(t + (10 * 60000));
+            Date afterAddingTenMin = new Date(t + AccessTokenService.TOKEN_LIFETIME);
             accessToken.setExpire(afterAddingTenMin);
             accessTokenService.putToken(accessToken);
             return ResponseEntity.ok(accessToken);
         } else return ResponseEntity.notFound().build();
     }
 
-    @GetMapping(value = "/open/{token:[\\d\\w]+}/{.*}", produces = MediaType.APPLICATION_PDF_VALUE)
-    public ResponseEntity<byte[]> openDocument(@PathVariable("token") String token) {
+    /**
+     * Streams the file from the document store. Spring answers range requests with 206 and conditional requests on the ETag
+     * (the content hash) and Last-Modified with 304.
+     */
+    @GetMapping(value = "/open/{token:[\\w-]+}/{.*}", produces = MediaType.APPLICATION_PDF_VALUE)
+    public ResponseEntity<Resource> openDocument(@PathVariable("token") String token) {
         Optional<AccessToken> documentAccessTokenOptional = accessTokenService.isValidAndGet(token);
         if (documentAccessTokenOptional.isPresent()) {
             AccessToken accessToken = documentAccessTokenOptional.get();
-            Optional<Document> documentOptional = documentSearch.getDocumentById(accessToken.getDocumentId());
+            Optional<Document> documentOptional = documentSearch.getDocumentById(accessToken.getDocumentId())
+                    .filter(document -> accessToken.getUserId() == null || accessToken.getUserId().equals(document.getUserId()));
             if (documentOptional.isPresent()) {
-                File file = fileUtil.getFile(documentOptional.get());
-                if (file.exists() && file.isFile()) {
+                Document document = documentOptional.get();
+                Resource resource = fileUtil.getResource(document);
+                if (resource.exists()) {
                     try {
-                        byte[] bytes = FileUtils.readFileToByteArray(file);
-                        return ResponseEntity.ok(bytes);
+                        long lastModified = resource.lastModified();
+                        String eTag = document.getContentHash() != null ? document.getContentHash() : resource.contentLength() + "-" + lastModified;
+                        return ResponseEntity.ok()
+                                .contentType(MediaType.APPLICATION_PDF)
+                                .eTag(eTag)
+                                .lastModified(lastModified)
+                                .cacheControl(CacheControl.noCache().cachePrivate())
+                                .body(resource);
                     } catch (IOException e) {
                         logger.error("Error by getting file", e);
                         return ResponseEntity.notFound().build();
@@ -312,18 +330,4 @@ public class DocumentController {
         } else return ResponseEntity.status(403).build();
     }
 
-    private String getAllowedFileName(String filename) {
-        String allowedChars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
-        if (filename.endsWith(".pdf")) filename = filename.substring(0, filename.length() - 4);
-        StringBuilder stringBuilder = new StringBuilder();
-        for (int i = 0; i < filename.length(); i++) {
-            char charAt = filename.charAt(i);
-            if (allowedChars.contains(String.valueOf(charAt))) {
-                stringBuilder.append(charAt);
-            }
-        }
-
-        return stringBuilder.toString();
-    }
-
 }
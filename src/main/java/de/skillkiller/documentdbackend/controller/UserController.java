@@ -4,6 +4,7 @@ import de.skillkiller.documentdbackend.entity.User;
 import de.skillkiller.documentdbackend.entity.UserDetailsHolder;
 import de.skillkiller.documentdbackend.entity.http.frontend.request.PasswordChangeRequest;
 import de.skillkiller.documentdbackend.search.UserSearch;
+import de.skillkiller.documentdbackend.service.PasswordHashingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.ResponseEntity;
@@ -91,16 +92,20 @@ public class UserController {
 
         if (passwordChangeRequest.getOldPassword() != null && passwordChangeRequest.getNewPassword() != null &&
                 !passwordChangeRequest.getNewPassword().isBlank() && passwordChangeRequest.getNewPassword().length() > 4) {
-            if (passwordEncoder.matches(passwordChangeRequest.getOldPassword(), authenticatedUser.getPasswordHash())) {
-                authenticatedUser.setPasswordHash(passwordEncoder.encode(passwordChangeRequest.getNewPassword()));
-                authenticatedUser.setModifyDate(new Date());
-                try {
-                    userSearch.createOrReplaceUser(authenticatedUser);
-                } catch (TimeoutException | InterruptedException e) {
-                    logger.error("Ran in timout during save new password");
-                    return ResponseEntity.status(503).build();
+            try {
+                if (passwordEncoder.matches(passwordChangeRequest.getOldPassword(), authenticatedUser.getPasswordHash())) {
+                    authenticatedUser.setPasswordHash(passwordEncoder.encode(passwordChangeRequest.getNewPassword()));
+                    authenticatedUser.setModifyDate(new Date());
+                    try {
+                        userSearch.createOrReplaceUser(authenticatedUser);
+                    } catch (TimeoutException | InterruptedException e) {
+                        logger.error("Ran in timout during save new password");
+                        return ResponseEntity.status(503).build();
+                    }
+                    return ResponseEntity.ok().build();
                 }
-                return ResponseEntity.ok().build();
+            } catch (PasswordHashingService.RejectedException e) {
+                return ResponseEntity.status(429).header("Retry-After", "1").build();
             }
         }
 
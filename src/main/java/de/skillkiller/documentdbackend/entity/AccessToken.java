@@ -1,5 +1,6 @@
 package de.skillkiller.documentdbackend.entity;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 
 import java.util.Date;
@@ -8,5 +9,7 @@ import java.util.Date;
 public class AccessToken {
     private String token;
     private String documentId;
+    @JsonIgnore
+    private String userId;
     private Date expire;
 }
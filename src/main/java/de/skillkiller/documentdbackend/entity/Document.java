@@ -2,10 +2,14 @@ package de.skillkiller.documentdbackend.entity;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 
 @Data
@@ -25,6 +29,18 @@ public class Document {
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd", timezone = "Europe/Berlin")
     private Date deleteDate;
 
+    // Epoch seconds of the dates for range filters. Always written from the dates above, the read values
+    // only tell whether the indexed document already has them.
+    @JsonProperty("documentdatets")
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Long documentDateTimestamp;
+
+    @JsonProperty("deletedatets")
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Long deleteDateTimestamp;
+
     @JsonProperty
     private String filename;
 
@@ -40,6 +56,9 @@ public class Document {
     @JsonProperty("userid")
     private String userId;
 
+    @JsonProperty("contenthash")
+    private String contentHash;
+
     @JsonProperty
     private String company;
 
@@ -49,4 +68,15 @@ public class Document {
     @JsonProperty
     private Set<String> tags = new HashSet<>();
 
+    public Long getDocumentDateTimestamp() {
+        return documentDate == null ? null : documentDate.getTime() / 1000;
+    }
+
+    public Long getDeleteDateTimestamp() {
+        return deleteDate == null ? null : deleteDate.getTime() / 1000;
+    }
+
+    public boolean needsDateTimestampBackfill() {
+        return !Objects.equals(documentDateTimestamp, getDocumentDateTimestamp()) || !Objects.equals(deleteDateTimestamp, getDeleteDateTimestamp());
+    }
 }
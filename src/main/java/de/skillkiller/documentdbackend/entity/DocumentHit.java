@@ -0,0 +1,21 @@
+package de.skillkiller.documentdbackend.entity;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+
+import java.util.Map;
+
+@Data
+@EqualsAndHashCode(callSuper = true)
+public class DocumentHit extends Document {
+
+    @JsonProperty("_matchesInfo")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Map<String, Object> matchesInfo;
+
+    @JsonProperty("_formatted")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Map<String, Object> formatted;
+}
@@ -0,0 +1,58 @@
+package de.skillkiller.documentdbackend.entity;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import de.skillkiller.documentdbackend.util.StoredFile;
+import lombok.Data;
+
+import java.util.Date;
+
+@Data
+public class IngestJob {
+
+    public enum Status {
+        QUEUED, EXTRACTING, INDEXING, OCR_QUEUED, OCR_RUNNING, COMPLETED, DUPLICATE, FAILED;
+
+        public boolean isFinished() {
+            return this == COMPLETED || this == DUPLICATE || this == FAILED;
+        }
+    }
+
+    @JsonProperty("jobid")
+    private String id;
+
+    @JsonProperty("userid")
+    private String userId;
+
+    @JsonProperty("filename")
+    private String originalFilename;
+
+    @JsonIgnore
+    private StoredFile storedFile;
+
+    @JsonIgnore
+    private OcrJob.Priority ocrPriority = OcrJob.Priority.INTERACTIVE;
+
+    @JsonIgnore
+    private boolean ocrRequired;
+
+    @JsonProperty
+    private volatile Status status = Status.QUEUED;
+
+    @JsonProperty
+    private volatile Document document;
+
+    @JsonProperty
+    private volatile String message;
+
+    @JsonProperty("createdate")
+    private Date createDate = new Date();
+
+    @JsonProperty("modifydate")
+    private volatile Date modifyDate = new Date();
+
+    public void updateStatus(Status status) {
+        this.status = status;
+        this.modifyDate = new Date();
+    }
+}
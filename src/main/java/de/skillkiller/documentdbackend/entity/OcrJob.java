@@ -0,0 +1,44 @@
+package de.skillkiller.documentdbackend.entity;
+
+import lombok.Data;
+
+import java.util.Comparator;
+
+@Data
+public class OcrJob implements Comparable<OcrJob> {
+
+    // Declaration order is processing order
+    public enum Priority {
+        INTERACTIVE, MAIL, BACKFILL
+    }
+
+    private static final Comparator<OcrJob> ORDER = Comparator.comparing(OcrJob::getPriority)
+            .thenComparingLong(OcrJob::getEnqueueTime)
+            .thenComparingLong(OcrJob::getSequence);
+
+    private String documentId;
+    private Priority priority;
+    private long enqueueTime;
+    private long sequence;
+    private Document document;
+    private IngestJob ingestJob;
+
+    public String getJournalFileName() {
+        return String.format("%d-%013d-%06d-%s.job", priority.ordinal(), enqueueTime, sequence, documentId);
+    }
+
+    public static OcrJob fromJournalFileName(String fileName) {
+        String[] parts = fileName.substring(0, fileName.length() - ".job".length()).split("-", 4);
+        OcrJob ocrJob = new OcrJob();
+        ocrJob.setPriority(Priority.values()[Integer.parseInt(parts[0])]);
+        ocrJob.setEnqueueTime(Long.parseLong(parts[1]));
+        ocrJob.setSequence(Long.parseLong(parts[2]));
+        ocrJob.setDocumentId(parts[3]);
+        return ocrJob;
+    }
+
+    @Override
+    public int compareTo(OcrJob other) {
+        return ORDER.compare(this, other);
+    }
+}
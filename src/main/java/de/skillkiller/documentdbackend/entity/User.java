@@ -3,9 +3,7 @@ package de.skillkiller.documentdbackend.entity;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
-import java.util.Date;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 @Data
 public class User {
@@ -33,6 +31,29 @@ public class User {
     @JsonProperty("categories")
     private Set<String> categories = new HashSet<>();
 
+    // Number of documents per company and category, the sets above are their key sets
+    @JsonProperty("companycounts")
+    private Map<String, Integer> companyCounts = new HashMap<>();
+
+    @JsonProperty("categorycounts")
+    private Map<String, Integer> categoryCounts = new HashMap<>();
+
     @JsonProperty("administrator")
     private boolean administrator;
+
+    public User copy() {
+        User user = new User();
+        user.setId(id);
+        user.setUsername(username);
+        user.setModifyDate(modifyDate == null ? null : new Date(modifyDate.getTime()));
+        user.setPasswordHash(passwordHash);
+        user.setConnectPassword(connectPassword);
+        user.setMailAddresses(mailAddresses == null ? null : new HashSet<>(mailAddresses));
+        user.setCompanies(companies == null ? null : new HashSet<>(companies));
+        user.setCategories(categories == null ? null : new HashSet<>(categories));
+        user.setCompanyCounts(companyCounts == null ? null : new HashMap<>(companyCounts));
+        user.setCategoryCounts(categoryCounts == null ? null : new HashMap<>(categoryCounts));
+        user.setAdministrator(administrator);
+        return user;
+    }
 }
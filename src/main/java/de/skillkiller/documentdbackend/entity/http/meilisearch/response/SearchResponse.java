@@ -6,9 +6,9 @@ import lombok.Data;
 import java.util.List;
 
 @Data
-public class SearchResponse {
+public class SearchResponse<T> {
     @JsonProperty
-    private List<Object> hits;
+    private List<T> hits;
 
     @JsonProperty
     private Integer offset;
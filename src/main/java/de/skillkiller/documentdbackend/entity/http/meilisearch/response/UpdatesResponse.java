@@ -4,5 +4,6 @@ import lombok.Data;
 
 @Data
 public class UpdatesResponse {
+    private Long updateId;
     private String status;
 }
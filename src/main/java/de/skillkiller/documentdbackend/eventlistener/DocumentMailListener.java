@@ -1,25 +1,20 @@
 package de.skillkiller.documentdbackend.eventlistener;
 
 
-import de.skillkiller.documentdbackend.controller.DocumentController;
+import de.skillkiller.documentdbackend.entity.OcrJob;
 import de.skillkiller.documentdbackend.entity.User;
 import de.skillkiller.documentdbackend.event.DocumentMailReceivedEvent;
 import de.skillkiller.documentdbackend.search.UserSearch;
-import de.skillkiller.documentdbackend.service.UserDetailsService;
-import de.skillkiller.documentdbackend.util.SimpleMultipartFile;
+import de.skillkiller.documentdbackend.service.IngestService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationListener;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.userdetails.UserDetails;
-import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Component;
 
 import javax.mail.*;
 import javax.mail.internet.InternetAddress;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -29,13 +24,11 @@ import java.util.Optional;
 public class DocumentMailListener implements ApplicationListener<DocumentMailReceivedEvent> {
     private static final Logger logger = LoggerFactory.getLogger(DocumentMailListener.class);
     private final UserSearch meiliSearch;
-    private final DocumentController documentController;
-    private final UserDetailsService userDetailsService;
+    private final IngestService ingestService;
 
-    public DocumentMailListener(UserSearch meiliSearch, DocumentController documentController, UserDetailsService userDetailsService) {
+    public DocumentMailListener(UserSearch meiliSearch, IngestService ingestService) {
         this.meiliSearch = meiliSearch;
-        this.documentController = documentController;
-        this.userDetailsService = userDetailsService;
+        this.ingestService = ingestService;
     }
 
     @Override
@@ -55,41 +48,12 @@ public class DocumentMailListener implements ApplicationListener<DocumentMailRec
                         User user = optionalUser.get();
                         logger.debug("Sender has connected account");
 
-                        UserDetails userDetails;
-                        try {
-                            userDetails = this.userDetailsService.loadUserById(user.getId());
-                        } catch (UsernameNotFoundException e) {
-                            logger.error("Cannot cannot upload document for user " + user.getId());
-                            return;
-                        }
-
-
-                        UsernamePasswordAuthenticationToken usernamePasswordAuthenticationToken = new UsernamePasswordAuthenticationToken(
-                                userDetails, null, userDetails.getAuthorities()
-                        );
-
                         List<BodyPart> bodyParts = getAttachment(message.getContent());
 
                         for (BodyPart bodyPart : bodyParts) {
-                            InputStream inputStream = bodyPart.getInputStream();
-
-                            ByteBuffer byteBuffer = ByteBuffer.allocate(bodyPart.getSize() * 10);
-                            byteBuffer.mark();
-
-                            byte[] buf = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = inputStream.read(buf)) != -1) {
-                                byteBuffer.put(buf, 0, bytesRead);
+                            try (InputStream inputStream = bodyPart.getInputStream()) {
+                                ingestService.submit(user, inputStream, bodyPart.getFileName(), OcrJob.Priority.MAIL);
                             }
-
-                            byteBuffer.flip();
-
-                            byte[] bytes = new byte[byteBuffer.remaining()];
-                            byteBuffer.get(bytes);
-
-                            SimpleMultipartFile base64DecodedMultipartFile = new SimpleMultipartFile(bytes, bodyPart.getFileName());
-
-                            documentController.handleFileUpload(usernamePasswordAuthenticationToken, base64DecodedMultipartFile);
                         }
                     } else {
                         logger.debug("Sender " + internetAddress.toString() + " has no connected account");
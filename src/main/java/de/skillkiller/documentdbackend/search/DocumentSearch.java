@@ -1,48 +1,50 @@
 package de.skillkiller.documentdbackend.search;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import de.skillkiller.documentdbackend.entity.Document;
+import de.skillkiller.documentdbackend.entity.DocumentHit;
 import de.skillkiller.documentdbackend.entity.http.meilisearch.response.SearchResponse;
 import de.skillkiller.documentdbackend.service.DatabaseLockService;
 import kong.unirest.HttpResponse;
 import kong.unirest.JsonNode;
-import kong.unirest.Unirest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 
 @Component
 public class DocumentSearch {
 
     private static final Logger logger = LoggerFactory.getLogger(DocumentSearch.class);
-    private final String hostUrl;
-    private final String privateApiKey;
+    // Result lists never show the full text, only a highlighted snippet of it in _formatted
+    private static final List<String> RESULT_LIST_ATTRIBUTES = Arrays.asList("documentid", "title", "documentdate", "documentdatets", "deletedate", "deletedatets", "filename", "pages", "pdftitle", "userid", "company", "category", "tags");
+    private static final String RESULT_LIST_PROJECTION = "\"attributesToRetrieve\":[\"" + String.join("\",\"", RESULT_LIST_ATTRIBUTES) + "\"]," +
+            "\"attributesToCrop\":[\"textcontent\"],\"cropLength\":200,\"attributesToHighlight\":[\"title\",\"textcontent\"]";
+    // The purge only needs what identifies the document, its file and its facet counts
+    private static final String RETENTION_PROJECTION = "\"attributesToRetrieve\":[\"documentid\",\"userid\",\"filename\",\"company\",\"category\",\"deletedate\",\"deletedatets\"]";
+    private static final int RETENTION_PAGE_SIZE = 1000;
+    private static final List<String> DOCUMENT_FACETS = Arrays.asList("company", "userid", "contenthash");
+    private final MeiliSearchClient meiliSearchClient;
     private final String documentIndexName;
-    private final ObjectMapper objectMapper;
-    private final SimpleDateFormat DELETEDATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
     private final MeiliSearch meiliSearch;
     private final DatabaseLockService databaseLockService;
+    private final SearchResultCache searchResultCache;
 
-    public DocumentSearch(@Value("${meilisearch.hosturl}") String hostUrl,
-                          @Value("${meilisearch.privateapikey}") String privateApiKey,
-                          @Value("${meilisearch.indexprefix}") String indexPrefix, ObjectMapper objectMapper, MeiliSearch meiliSearch, DatabaseLockService databaseLockService) {
-        this.hostUrl = hostUrl;
-        this.privateApiKey = privateApiKey;
+    public DocumentSearch(MeiliSearchClient meiliSearchClient,
+                          @Value("${meilisearch.indexprefix}") String indexPrefix, MeiliSearch meiliSearch, DatabaseLockService databaseLockService,
+                          SearchResultCache searchResultCache) {
+        this.meiliSearchClient = meiliSearchClient;
         this.documentIndexName = indexPrefix + "documents";
-        this.objectMapper = objectMapper;
         this.meiliSearch = meiliSearch;
         this.databaseLockService = databaseLockService;
-        this.DELETEDATE_FORMAT.setTimeZone(TimeZone.getTimeZone("Europe/Berlin"));
+        this.searchResultCache = searchResultCache;
     }
 
     public List<String> getAllIndexes() {
-        HttpResponse<JsonNode> request = Unirest.get(hostUrl + "/indexes")
-                .header("X-Meili-API-Key", privateApiKey)
+        HttpResponse<JsonNode> request = meiliSearchClient.get("/indexes")
                 .asJson();
         List<String> indexes = new ArrayList<>();
 
@@ -59,125 +61,150 @@ public class DocumentSearch {
         boolean success = meiliSearch.createIndex(documentIndexName, "documentid");
 
         if (success) {
-            Unirest.post(hostUrl + "/indexes/{index_uid}/settings")
-                    .body("{\"attributesForFaceting\": [\"company\",\"userid\",\"deletedate\"],\"searchableAttributes\":[\"documentid\",\"title\",\"documentdate\",\"deletedate\",\"tags\",\"pdftitle\",\"company\",\"category\",\"textcontent\",\"filename\"]}")
+            meiliSearchClient.postUpdate("/indexes/{index_uid}/settings")
+                    .body("{\"attributesForFaceting\": [\"company\",\"userid\",\"contenthash\"],\"searchableAttributes\":[\"documentid\",\"title\",\"documentdate\",\"deletedate\",\"tags\",\"pdftitle\",\"company\",\"category\",\"textcontent\",\"filename\"]}")
                     .routeParam("index_uid", documentIndexName)
-                    .header("X-Meili-API-Key", privateApiKey)
                     .asEmptyAsync();
+        } else {
+            addMissingFacetingAttributes();
         }
         return success;
     }
 
-    public boolean createOrReplaceDocument(Document document) throws TimeoutException, InterruptedException {
-        if (document.getCompany() == null) document.setCompany("null");
-        return meiliSearch.createOrReplaceMeiliDocument(document, documentIndexName);
+    // Existing indexes were created before all facets were known. Only update the settings when needed,
+    // because every settings update lets meilisearch reindex all documents.
+    private void addMissingFacetingAttributes() {
+        HttpResponse<List> request = meiliSearchClient.get("/indexes/{index_uid}/settings/attributes-for-faceting")
+                .routeParam("index_uid", documentIndexName)
+                .asObject(List.class);
+        if (request.getStatus() != 200) return;
+
+        Set<Object> facets = new LinkedHashSet<>(request.getBody());
+        if (facets.addAll(DOCUMENT_FACETS)) {
+            logger.info("Add missing faceting attributes to index " + documentIndexName);
+            meiliSearchClient.postUpdate("/indexes/{index_uid}/settings/attributes-for-faceting")
+                    .body(new ArrayList<>(facets))
+                    .routeParam("index_uid", documentIndexName)
+                    .asEmptyAsync();
+        }
     }
 
-    public SearchResponse searchForTopDocumentsInUserScope(String userid) {
-        return searchForTopDocumentsInUserScope(userid, 0, 20);
+    public boolean createOrReplaceDocument(Document document) throws TimeoutException, InterruptedException {
+        try {
+            return meiliSearch.createOrReplaceMeiliDocument(document, documentIndexName);
+        } finally {
+            searchResultCache.invalidateUser(document.getUserId());
+        }
     }
 
-    public SearchResponse searchForTopDocumentsInUserScope(String userid, int offset, int limit) {
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
-                .body(String.format("{\"facetFilters\":[\"userid:%s\",\"company:null\"],\"offset\":%s,\"limit\":%s,\"matches\":true}", userid, offset, limit))
-                .routeParam("index_uid", documentIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
-        return replaceDocumentsCompanyName(request);
+    public boolean createOrReplaceDocuments(List<Document> documents) throws TimeoutException, InterruptedException {
+        try {
+            return meiliSearch.createOrReplaceMeiliDocuments(documents, documentIndexName);
+        } finally {
+            documents.forEach(document -> searchResultCache.invalidateUser(document.getUserId()));
+        }
     }
 
-    private SearchResponse replaceDocumentsCompanyName(HttpResponse<SearchResponse> request) {
-        if (request.getBody().getHits() != null) {
-            for (Object hit : request.getBody().getHits()) {
-                if (hit instanceof LinkedHashMap) {
-                    LinkedHashMap<String, Object> linkedHashMap = (LinkedHashMap<String, Object>) hit;
-                    Object obj = linkedHashMap.get("company");
-                    if (obj instanceof String) {
-                        if ("null".equals(obj)) linkedHashMap.put("company", null);
-                    }
-                }
-            }
+    public boolean createOrReplaceDocumentsBypassWriteLock(List<Document> documents) {
+        try {
+            return meiliSearch.createOrReplaceMeiliDocumentsBypassWriteLock(documents, documentIndexName);
+        } finally {
+            documents.forEach(document -> searchResultCache.invalidateUser(document.getUserId()));
         }
+    }
+
+    public SearchResponse<DocumentHit> searchForTopDocumentsInUserScope(String userid) {
+        return searchForTopDocumentsInUserScope(userid, 0, 20, null, null);
+    }
+
+    public SearchResponse<DocumentHit> searchForTopDocumentsInUserScope(String userid, int offset, int limit, Long dateFrom, Long dateTo) {
+        HttpResponse<SearchResponse<DocumentHit>> request = meiliSearchClient.post("/indexes/{index_uid}/search")
+                .body(String.format("{\"facetFilters\":[\"userid:%s\",\"company:null\"],\"offset\":%s,\"limit\":%s,\"matches\":true,%s%s}", userid, offset, limit, RESULT_LIST_PROJECTION, documentDateFilter(dateFrom, dateTo)))
+                .routeParam("index_uid", documentIndexName)
+                .asObject(meiliSearchClient.searchResponseOf(DocumentHit.class));
         return request.getBody();
     }
 
-    public SearchResponse searchForDocumentInUserScope(String userid, String searchQuery) {
-        return searchForDocumentInUserScope(userid, searchQuery, 0, 20);
+    public SearchResponse<DocumentHit> searchForDocumentInUserScope(String userid, String searchQuery) {
+        return searchForDocumentInUserScope(userid, searchQuery, 0, 20, null, null);
     }
 
-    public SearchResponse searchForDocumentInUserScope(String userid, String searchQuery, int offset, int limit) {
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
-                .body(String.format("{\"q\":\"%s\",\"facetFilters\":[\"userid:%s\"],\"offset\":%s,\"limit\":%s,\"matches\":true}", searchQuery, userid, offset, limit))
+    public SearchResponse<DocumentHit> searchForDocumentInUserScope(String userid, String searchQuery, int offset, int limit, Long dateFrom, Long dateTo) {
+        HttpResponse<SearchResponse<DocumentHit>> request = meiliSearchClient.post("/indexes/{index_uid}/search")
+                .body(String.format("{\"q\":\"%s\",\"facetFilters\":[\"userid:%s\"],\"offset\":%s,\"limit\":%s,\"matches\":true,%s%s}", searchQuery, userid, offset, limit, RESULT_LIST_PROJECTION, documentDateFilter(dateFrom, dateTo)))
                 .routeParam("index_uid", documentIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
+                .asObject(meiliSearchClient.searchResponseOf(DocumentHit.class));
 
-        return replaceDocumentsCompanyName(request);
+        return request.getBody();
     }
 
-    public SearchResponse getDocumentsWithCompanyFilterInUserScope(String userid, String company) {
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
+    public CompletableFuture<SearchResponse<Document>> getDocumentsWithCompanyFilterInUserScopeAsync(String userid, String company) {
+        return meiliSearchClient.post("/indexes/{index_uid}/search")
                 .body(String.format("{\"filters\":\"company = \\\"%s\\\"\",\"facetFilters\":[\"userid:%s\"]}", company, userid))
                 .routeParam("index_uid", documentIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
-        return handleSearchResponseAndTransFormHitsToDocuments(request);
+                .asObjectAsync(meiliSearchClient.searchResponseOf(Document.class))
+                .thenApply(HttpResponse::getBody);
     }
 
-    public SearchResponse getDocumentsWithCategoryFilterInUserScope(String userid, String company) {
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
+    public CompletableFuture<SearchResponse<Document>> getDocumentsWithCategoryFilterInUserScopeAsync(String userid, String company) {
+        return meiliSearchClient.post("/indexes/{index_uid}/search")
                 .body(String.format("{\"filters\":\"category = \\\"%s\\\"\",\"facetFilters\":[\"userid:%s\"]}", company, userid))
                 .routeParam("index_uid", documentIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
-        return handleSearchResponseAndTransFormHitsToDocuments(request);
+                .asObjectAsync(meiliSearchClient.searchResponseOf(Document.class))
+                .thenApply(HttpResponse::getBody);
     }
 
-    public List<Document> getDocumentsWithDeleteFilter(List<Date> datesToGet) {
+    // Optional range of the document date in epoch seconds, from inclusive and to exclusive
+    private static String documentDateFilter(Long dateFrom, Long dateTo) {
+        List<String> conditions = new ArrayList<>(2);
+        if (dateFrom != null) conditions.add("documentdatets >= " + dateFrom);
+        if (dateTo != null) conditions.add("documentdatets < " + dateTo);
+        if (conditions.isEmpty()) return "";
+        return ",\"filters\":\"" + String.join(" AND ", conditions) + "\"";
+    }
+
+    public List<Document> getDocumentsToDelete(Date until) {
         List<Document> documentList = new ArrayList<>();
         int offset = 0;
-        SearchResponse searchResponse;
+        List<Document> hits;
         do {
-            searchResponse = getDocumentsWithDeleteFilter(datesToGet, 1, offset);
-            if (searchResponse.getHits() != null) {
-                for (Object hit : searchResponse.getHits()) {
-                    if (hit instanceof Document) {
-                        documentList.add((Document) hit);
-                    }
-                }
-            }
-
-            offset += searchResponse.getLimit();
-        } while (searchResponse.getNbHits() > (searchResponse.getOffset() + searchResponse.getLimit()));
+            hits = getDocumentsToDelete(until, RETENTION_PAGE_SIZE, offset).getHits();
+            if (hits == null) break;
+            documentList.addAll(hits);
+            offset += RETENTION_PAGE_SIZE;
+        } while (hits.size() == RETENTION_PAGE_SIZE);
 
         return documentList;
     }
 
-    private SearchResponse getDocumentsWithDeleteFilter(List<Date> datesToGet, int limit, int offset) {
-        if (datesToGet.size() == 0) throw new RuntimeException("Dates list is empty!");
-        StringBuilder stringBuilder = new StringBuilder("[[");
-        String pattern = "\"deletedate:%s\"";
-        stringBuilder.append(String.format(pattern, DELETEDATE_FORMAT.format(datesToGet.get(0))));
-        for (int i = 1; i < datesToGet.size(); i++) {
-            stringBuilder.append(",");
-            stringBuilder.append(String.format(pattern, DELETEDATE_FORMAT.format(datesToGet.get(i))));
-        }
-        stringBuilder.append("]]");
+    private SearchResponse<Document> getDocumentsToDelete(Date until, int limit, int offset) {
+        HttpResponse<SearchResponse<Document>> request = meiliSearchClient.post("/indexes/{index_uid}/search")
+                .body(String.format("{\"filters\":\"deletedatets <= %s\",\"limit\":%s,\"offset\":%s,%s}", until.getTime() / 1000, limit, offset, RETENTION_PROJECTION))
+                .routeParam("index_uid", documentIndexName)
+                .asObject(meiliSearchClient.searchResponseOf(Document.class));
+        return request.getBody();
+    }
 
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
-                .body(String.format("{\"facetFilters\": %s,\"limit\":%s,\"offset\":%s}", stringBuilder.toString(), limit, offset))
+    public Optional<Document> getDocumentByContentHashInUserScope(String userid, String contentHash) {
+        HttpResponse<SearchResponse<Document>> request = meiliSearchClient.post("/indexes/{index_uid}/search")
+                .body(String.format("{\"facetFilters\":[\"userid:%s\",\"contenthash:%s\"],\"offset\":0,\"limit\":1}", userid, contentHash))
                 .routeParam("index_uid", documentIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
-        return handleSearchResponseAndTransFormHitsToDocuments(request);
+                .asObject(meiliSearchClient.searchResponseOf(Document.class));
+
+        if (request.getStatus() == 200) {
+            List<Document> hits = request.getBody().getHits();
+            if (hits != null && !hits.isEmpty()) {
+                return Optional.of(hits.get(0));
+            }
+        }
+        return Optional.empty();
     }
 
     public Optional<Document> getDocumentById(String documentId) {
-        HttpResponse<Document> request = Unirest.get(hostUrl + "/indexes/{index_uid}/documents/{document_id}")
+        HttpResponse<Document> request = meiliSearchClient.get("/indexes/{index_uid}/documents/{document_id}")
                 .routeParam("index_uid", documentIndexName)
                 .routeParam("document_id", documentId)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(Document.class);
+                .asObject(meiliSearchClient.json(Document.class));
 
         if (request.getStatus() == 200) {
             return Optional.of(request.getBody());
@@ -186,26 +213,23 @@ public class DocumentSearch {
     }
 
     public List<Document> getDocuments(int offset, int limit) {
-        HttpResponse<List> request = Unirest.get(hostUrl + "/indexes/{index_uid}/documents")
+        return getDocuments(offset, limit, "*");
+    }
+
+    private List<Document> getDocuments(int offset, int limit, String attributesToRetrieve) {
+        HttpResponse<List<Document>> request = meiliSearchClient.get("/indexes/{index_uid}/documents")
                 .queryString("offset", offset)
                 .queryString("limit", limit)
+                .queryString("attributesToRetrieve", attributesToRetrieve)
                 .routeParam("index_uid", documentIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(List.class);
-
-        List<Document> documents = new ArrayList<>(request.getBody().size());
-        for (Object o : request.getBody()) {
-            documents.add(objectMapper.convertValue(o, Document.class));
-        }
+                .asObject(meiliSearchClient.listOf(Document.class));
 
-        return documents;
+        return request.getBody();
     }
 
-    public SearchResponse getDocumentsAsSearchResponse(int offset, int limit) {
-        SearchResponse searchResponse = new SearchResponse();
-        List<Document> documents = getDocuments(offset, limit);
-        List<Object> objects = new ArrayList<>(documents);
-        searchResponse.setHits(objects);
+    public SearchResponse<Document> getDocumentsAsSearchResponse(int offset, int limit) {
+        SearchResponse<Document> searchResponse = new SearchResponse<>();
+        searchResponse.setHits(getDocuments(offset, limit, String.join(",", RESULT_LIST_ATTRIBUTES)));
 
         searchResponse.setLimit(limit);
         searchResponse.setOffset(offset);
@@ -226,31 +250,35 @@ public class DocumentSearch {
         return Optional.empty();
     }
 
-    public void deleteDocument(String documentId) throws TimeoutException, InterruptedException {
-        meiliSearch.deleteMeiliDocument(documentIndexName, documentId);
+    public void deleteDocument(Document document) throws TimeoutException, InterruptedException {
+        try {
+            meiliSearch.deleteMeiliDocument(documentIndexName, document.getId());
+        } finally {
+            searchResultCache.invalidateUser(document.getUserId());
+        }
+    }
+
+    public boolean deleteDocuments(List<Document> documents) throws TimeoutException, InterruptedException {
+        List<String> documentIds = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            documentIds.add(document.getId());
+        }
+        try {
+            return meiliSearch.deleteMeiliDocuments(documentIndexName, documentIds);
+        } finally {
+            documents.forEach(document -> searchResultCache.invalidateUser(document.getUserId()));
+        }
     }
 
-    public void deleteDocumentBypassWriteLock(String documentId) {
-        meiliSearch.deleteMeiliDocumentBypassWriteLock(documentIndexName, documentId);
+    public void deleteDocumentBypassWriteLock(Document document) {
+        searchResultCache.invalidateUser(document.getUserId());
+        // The delete is sent later, results must not be cached before meilisearch has the update
+        meiliSearch.deleteMeiliDocumentBypassWriteLock(documentIndexName, document.getId())
+                .whenComplete((success, throwable) -> searchResultCache.invalidateUser(document.getUserId()));
     }
 
     public boolean hasAllUpdatesProcessed() {
         return meiliSearch.hasAllUpdatesProcessed(documentIndexName);
     }
 
-
-    private SearchResponse handleSearchResponseAndTransFormHitsToDocuments(HttpResponse<SearchResponse> request) {
-        SearchResponse searchResponse = request.getBody();
-        List<Object> hits = searchResponse.getHits();
-        List<Object> userHits = new LinkedList<>();
-        if (hits != null) {
-            for (Object hit : hits) {
-                Document document = objectMapper.convertValue(hit, Document.class);
-                if (document.getCompany().equals("null")) document.setCompany(null);
-                userHits.add(document);
-            }
-            searchResponse.setHits(userHits);
-        }
-        return request.getBody();
-    }
 }
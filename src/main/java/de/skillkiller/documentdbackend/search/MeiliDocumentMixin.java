@@ -0,0 +1,17 @@
+package de.skillkiller.documentdbackend.search;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import de.skillkiller.documentdbackend.util.NullStringDeserializer;
+import de.skillkiller.documentdbackend.util.NullStringSerializer;
+
+/**
+ * How documents are stored in meilisearch, which differs from the API representation. Meilisearch can not
+ * filter for missing facet values, so a missing company is stored as {@code "null"}.
+ */
+abstract class MeiliDocumentMixin {
+
+    @JsonSerialize(nullsUsing = NullStringSerializer.class)
+    @JsonDeserialize(using = NullStringDeserializer.class)
+    private String company;
+}
@@ -3,49 +3,50 @@ package de.skillkiller.documentdbackend.search;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import de.skillkiller.documentdbackend.entity.http.meilisearch.request.CreateIndexRequest;
 import de.skillkiller.documentdbackend.entity.http.meilisearch.response.StatsResponse;
+import de.skillkiller.documentdbackend.entity.http.meilisearch.response.UpdatesResponse;
 import de.skillkiller.documentdbackend.service.DatabaseLockService;
 import kong.unirest.HttpResponse;
 import kong.unirest.JsonNode;
-import kong.unirest.Unirest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeoutException;
 
 @Component
 public class MeiliSearch {
 
-    private final String hostUrl;
-    private final String privateApiKey;
+    private final MeiliSearchClient meiliSearchClient;
     private final DatabaseLockService databaseLockService;
+    private final MeiliSearchBatchWriter batchWriter;
     private static final Logger logger = LoggerFactory.getLogger(MeiliSearch.class);
 
-    public MeiliSearch(@Value("${meilisearch.hosturl}") String hostUrl,
-                       @Value("${meilisearch.privateapikey}") String privateApiKey,
-                       @Value("${meilisearch.indexprefix}") String indexPrefix, ObjectMapper objectMapper, DatabaseLockService databaseLockService) {
-        this.hostUrl = hostUrl;
-        this.privateApiKey = privateApiKey;
+    public MeiliSearch(MeiliSearchClient meiliSearchClient,
+                       @Value("${meilisearch.indexprefix}") String indexPrefix, ObjectMapper objectMapper, DatabaseLockService databaseLockService,
+                       MeiliSearchBatchWriter batchWriter) {
+        this.meiliSearchClient = meiliSearchClient;
         this.databaseLockService = databaseLockService;
+        this.batchWriter = batchWriter;
     }
 
     protected StatsResponse getStatisticsFromIndex(String primaryKey) {
-        HttpResponse<StatsResponse> request = Unirest.get(hostUrl + "/indexes/{index_uid}/stats")
+        HttpResponse<StatsResponse> request = meiliSearchClient.get("/indexes/{index_uid}/stats")
                 .routeParam("index_uid", primaryKey)
-                .header("X-Meili-API-Key", privateApiKey)
                 .asObject(StatsResponse.class);
 
         return request.getBody();
     }
 
     protected boolean hasAllUpdatesProcessed(String primaryKey) {
-        HttpResponse<List> request = Unirest.get(hostUrl + "/indexes/{index_uid}/updates")
+        HttpResponse<List> request = meiliSearchClient.get("/indexes/{index_uid}/updates")
                 .routeParam("index_uid", primaryKey)
-                .header("X-Meili-API-Key", privateApiKey)
                 .asObject(List.class);
         if (request.getStatus() == 200) {
             boolean processed = true;
@@ -63,11 +64,23 @@ public class MeiliSearch {
         }
     }
 
+    /**
+     * Whether meilisearch has processed the update, updates of an index are processed in order.
+     */
+    protected boolean isUpdateProcessed(String indexName, long updateId) {
+        HttpResponse<UpdatesResponse> request = meiliSearchClient.get("/indexes/{index_uid}/updates/{update_id}")
+                .routeParam("index_uid", indexName)
+                .routeParam("update_id", String.valueOf(updateId))
+                .asObject(meiliSearchClient.json(UpdatesResponse.class));
+        if (request.getBody() == null) return false;
+        String status = request.getBody().getStatus();
+        return "processed".equals(status) || "failed".equals(status);
+    }
+
     protected boolean createIndex(String uid, String primaryKey) throws TimeoutException, InterruptedException {
         databaseLockService.requestDoingWriteOperation();
-        HttpResponse<JsonNode> request = Unirest.post(hostUrl + "/indexes")
+        HttpResponse<JsonNode> request = meiliSearchClient.postUpdate("/indexes")
                 .body(new CreateIndexRequest(uid, primaryKey))
-                .header("X-Meili-API-Key", privateApiKey)
                 .asJson();
 
         databaseLockService.completeWriteOperation();
@@ -75,34 +88,62 @@ public class MeiliSearch {
     }
 
     protected boolean createOrReplaceMeiliDocument(Object o, String primaryKey) throws TimeoutException, InterruptedException {
-        databaseLockService.requestDoingWriteOperation();
-        boolean success = createOrReplaceMeiliDocumentBypassWriteLock(o, primaryKey);
-        databaseLockService.completeWriteOperation();
-        return success;
+        return createOrReplaceMeiliDocuments(Collections.singletonList(o), primaryKey);
     }
 
     protected boolean createOrReplaceMeiliDocumentBypassWriteLock(Object o, String primaryKey) {
-        HttpResponse request = Unirest.post(hostUrl + "/indexes/{index_uid}/documents")
-                .body(Collections.singletonList(o))
-                .routeParam("index_uid", primaryKey)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asEmpty();
+        return createOrReplaceMeiliDocumentsBypassWriteLock(Collections.singletonList(o), primaryKey);
+    }
+
+    protected boolean createOrReplaceMeiliDocuments(List<?> objects, String primaryKey) throws TimeoutException, InterruptedException {
+        databaseLockService.requestDoingWriteOperation();
+        try {
+            return createOrReplaceMeiliDocumentsBypassWriteLock(objects, primaryKey);
+        } finally {
+            databaseLockService.completeWriteOperation();
+        }
+    }
 
-        return request.getStatus() == 202;
+    protected boolean createOrReplaceMeiliDocumentsBypassWriteLock(List<?> objects, String primaryKey) {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>(objects.size());
+        for (Object o : objects) {
+            futures.add(batchWriter.upsert(primaryKey, o));
+        }
+        return awaitWrites(futures);
     }
 
     protected void deleteMeiliDocument(String indexName, String id) throws TimeoutException, InterruptedException {
+        deleteMeiliDocuments(indexName, Collections.singletonList(id));
+    }
+
+    protected CompletableFuture<Boolean> deleteMeiliDocumentBypassWriteLock(String indexName, String id) {
+        return batchWriter.delete(indexName, id);
+    }
+
+    protected boolean deleteMeiliDocuments(String indexName, List<String> ids) throws TimeoutException, InterruptedException {
         databaseLockService.requestDoingWriteOperation();
-        deleteMeiliDocumentBypassWriteLock(indexName, id);
-        databaseLockService.completeWriteOperation();
+        try {
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                futures.add(batchWriter.delete(indexName, id));
+            }
+            return awaitWrites(futures);
+        } finally {
+            databaseLockService.completeWriteOperation();
+        }
     }
 
-    protected void deleteMeiliDocumentBypassWriteLock(String indexName, String id) {
-        Unirest.delete(hostUrl + "/indexes/{index_uid}/documents/{document_id}")
-                .routeParam("index_uid", indexName)
-                .routeParam("document_id", id)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asEmptyAsync();
+    private boolean awaitWrites(List<CompletableFuture<Boolean>> futures) {
+        boolean success = true;
+        for (CompletableFuture<Boolean> future : futures) {
+            try {
+                success &= future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+        return success;
     }
 
 }
@@ -0,0 +1,137 @@
+package de.skillkiller.documentdbackend.search;
+
+import de.skillkiller.documentdbackend.entity.http.meilisearch.response.UpdatesResponse;
+import kong.unirest.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coalesces document upserts and deletes per index. Writes are buffered for {@code meilisearch.batch.linger}
+ * milliseconds or until {@code meilisearch.batch.size} writes are pending, then every run of consecutive upserts
+ * or deletes is sent as one request. Runs are sent in order on a single thread, so meilisearch applies the writes
+ * of an index in the order they were submitted. Each caller gets a future that completes with the result of the
+ * request its write was part of.
+ */
+@Component
+public class MeiliSearchBatchWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeiliSearchBatchWriter.class);
+    private final MeiliSearchClient meiliSearchClient;
+    private final long lingerMillis;
+    private final int batchSize;
+    private final ScheduledExecutorService flushExecutorService = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, List<PendingWrite>> pendingWrites = new HashMap<>();
+    private final Set<String> scheduledIndexes = new HashSet<>();
+    // Highest update id per index enqueued by this node
+    private final Map<String, Long> lastUpdateIds = new ConcurrentHashMap<>();
+
+    public MeiliSearchBatchWriter(MeiliSearchClient meiliSearchClient,
+                                  @Value("${meilisearch.batch.linger:5}") long lingerMillis,
+                                  @Value("${meilisearch.batch.size:500}") int batchSize) {
+        this.meiliSearchClient = meiliSearchClient;
+        this.lingerMillis = lingerMillis;
+        this.batchSize = batchSize;
+    }
+
+    CompletableFuture<Boolean> upsert(String indexName, Object document) {
+        return submit(indexName, new PendingWrite(false, document));
+    }
+
+    CompletableFuture<Boolean> delete(String indexName, String id) {
+        return submit(indexName, new PendingWrite(true, id));
+    }
+
+    private CompletableFuture<Boolean> submit(String indexName, PendingWrite pendingWrite) {
+        synchronized (pendingWrites) {
+            List<PendingWrite> writes = pendingWrites.computeIfAbsent(indexName, k -> new ArrayList<>());
+            writes.add(pendingWrite);
+            if (writes.size() >= batchSize) {
+                flushExecutorService.execute(() -> flush(indexName));
+            } else if (scheduledIndexes.add(indexName)) {
+                flushExecutorService.schedule(() -> flush(indexName), lingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        return pendingWrite.future;
+    }
+
+    private void flush(String indexName) {
+        List<PendingWrite> writes;
+        synchronized (pendingWrites) {
+            scheduledIndexes.remove(indexName);
+            writes = pendingWrites.remove(indexName);
+        }
+        if (writes == null) return;
+
+        int start = 0;
+        while (start < writes.size()) {
+            boolean delete = writes.get(start).delete;
+            int end = start;
+            while (end < writes.size() && writes.get(end).delete == delete) end++;
+            send(indexName, delete, writes.subList(start, end));
+            start = end;
+        }
+    }
+
+    private void send(String indexName, boolean delete, List<PendingWrite> run) {
+        List<Object> payloads = new ArrayList<>(run.size());
+        for (PendingWrite pendingWrite : run) {
+            payloads.add(pendingWrite.payload);
+        }
+
+        try {
+            HttpResponse<UpdatesResponse> request = meiliSearchClient.postUpdate(delete ? "/indexes/{index_uid}/documents/delete-batch" : "/indexes/{index_uid}/documents")
+                    .body(payloads)
+                    .routeParam("index_uid", indexName)
+                    .asObject(meiliSearchClient.json(UpdatesResponse.class));
+
+            boolean success = request.getStatus() == 202;
+            if (success && request.getBody() != null && request.getBody().getUpdateId() != null) {
+                lastUpdateIds.merge(indexName, request.getBody().getUpdateId(), Math::max);
+            }
+            if (!success) {
+                logger.warn((delete ? "Delete" : "Upsert") + " of " + run.size() + " documents in " + indexName + " failed with status " + request.getStatus());
+            }
+            run.forEach(pendingWrite -> pendingWrite.future.complete(success));
+        } catch (RuntimeException e) {
+            logger.error((delete ? "Delete" : "Upsert") + " of " + run.size() + " documents in " + indexName + " failed", e);
+            run.forEach(pendingWrite -> pendingWrite.future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Highest update id this node has enqueued for the index, -1 if none. Written before the futures of the
+     * write complete.
+     */
+    long getLastUpdateId(String indexName) {
+        return lastUpdateIds.getOrDefault(indexName, -1L);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        // Send what is still buffered before the executor stops
+        synchronized (pendingWrites) {
+            for (String indexName : pendingWrites.keySet()) {
+                flushExecutorService.execute(() -> flush(indexName));
+            }
+        }
+        flushExecutorService.shutdown();
+        flushExecutorService.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private static class PendingWrite {
+        private final boolean delete;
+        private final Object payload;
+        private final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        private PendingWrite(boolean delete, Object payload) {
+            this.delete = delete;
+            this.payload = payload;
+        }
+    }
+}
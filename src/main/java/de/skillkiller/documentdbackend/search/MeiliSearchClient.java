@@ -0,0 +1,129 @@
+package de.skillkiller.documentdbackend.search;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.skillkiller.documentdbackend.entity.Document;
+import de.skillkiller.documentdbackend.entity.http.meilisearch.response.SearchResponse;
+import kong.unirest.GetRequest;
+import kong.unirest.HttpRequestWithBody;
+import kong.unirest.RawResponse;
+import kong.unirest.Unirest;
+import kong.unirest.UnirestInstance;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Dedicated HTTP client for meilisearch with its own keep-alive connection pool. Requests already carry the
+ * host and API key. Reads and searches use a short socket timeout, updates (document and settings writes, index
+ * creation) a longer one. Every request builder also offers the {@code as...Async} variants, which return a
+ * {@link java.util.concurrent.CompletableFuture} and do not block the calling thread.
+ */
+@Component
+public class MeiliSearchClient {
+
+    private final UnirestInstance unirest;
+    private final ObjectMapper objectMapper;
+    private final int readTimeout;
+    private final int updateTimeout;
+
+    public MeiliSearchClient(@Value("${meilisearch.hosturl}") String hostUrl,
+                             @Value("${meilisearch.privateapikey}") String privateApiKey,
+                             @Value("${meilisearch.connections:50}") int connections,
+                             @Value("${meilisearch.connectionttl:300}") long connectionTtlSeconds,
+                             @Value("${meilisearch.timeout.connect:2000}") int connectTimeout,
+                             @Value("${meilisearch.timeout.read:10000}") int readTimeout,
+                             @Value("${meilisearch.timeout.update:60000}") int updateTimeout,
+                             ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper.copy().addMixIn(Document.class, MeiliDocumentMixin.class);
+        this.readTimeout = readTimeout;
+        this.updateTimeout = updateTimeout;
+        this.unirest = Unirest.spawnInstance();
+        // All connections go to one host, the route limit is the pool size
+        this.unirest.config()
+                .defaultBaseUrl(hostUrl)
+                .setDefaultHeader("X-Meili-API-Key", privateApiKey)
+                .concurrency(connections, connections)
+                .connectionTTL(connectionTtlSeconds, TimeUnit.SECONDS)
+                .connectTimeout(connectTimeout)
+                .socketTimeout(readTimeout)
+                .automaticRetries(false)
+                .setObjectMapper(new kong.unirest.ObjectMapper() {
+
+                    @Override
+                    public String writeValue(Object value) {
+                        try {
+                            return objectMapper.writeValueAsString(value);
+                        } catch (JsonProcessingException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    @Override
+                    public <T> T readValue(String value, Class<T> valueType) {
+                        try {
+                            return objectMapper.readValue(value, valueType);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+    }
+
+    public GetRequest get(String path) {
+        return unirest.get(path).socketTimeout(readTimeout);
+    }
+
+    // Searches are POST requests, but only read
+    public HttpRequestWithBody post(String path) {
+        return unirest.post(path).socketTimeout(readTimeout);
+    }
+
+    public HttpRequestWithBody postUpdate(String path) {
+        return unirest.post(path).socketTimeout(updateTimeout);
+    }
+
+    public HttpRequestWithBody deleteUpdate(String path) {
+        return unirest.delete(path).socketTimeout(updateTimeout);
+    }
+
+    /**
+     * Decodes a search response in one pass from the response stream, straight into hits of the given type.
+     * Use with {@code asObject} or {@code asObjectAsync}. The body is {@code null} if the request failed.
+     */
+    public <T> Function<RawResponse, SearchResponse<T>> searchResponseOf(Class<T> hitType) {
+        return json(objectMapper.getTypeFactory().constructParametricType(SearchResponse.class, hitType));
+    }
+
+    public <T> Function<RawResponse, List<T>> listOf(Class<T> elementType) {
+        return json(objectMapper.getTypeFactory().constructCollectionType(List.class, elementType));
+    }
+
+    public <T> Function<RawResponse, T> json(Class<T> type) {
+        return json(objectMapper.getTypeFactory().constructType(type));
+    }
+
+    private <T> Function<RawResponse, T> json(JavaType type) {
+        return rawResponse -> {
+            if (rawResponse.getStatus() / 100 != 2) return null;
+            try (InputStream content = rawResponse.getContent()) {
+                return objectMapper.readValue(content, type);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        unirest.shutDown();
+    }
+}
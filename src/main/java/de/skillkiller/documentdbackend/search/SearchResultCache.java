@@ -0,0 +1,203 @@
+package de.skillkiller.documentdbackend.search;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import de.skillkiller.documentdbackend.entity.Document;
+import de.skillkiller.documentdbackend.entity.DocumentHit;
+import de.skillkiller.documentdbackend.entity.http.meilisearch.response.SearchResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches search result pages per user, bounded by the estimated size of the cached hits.
+ * Every document write bumps the generation of its user, which invalidates all pages of that user. Pages of
+ * the global listing are invalidated by writes of any user. Meilisearch applies writes asynchronously, so after a
+ * write results of that user are served but not cached until meilisearch has processed the last update this node
+ * enqueued for the document index before the write was recorded. That is checked at most every
+ * {@code search.cache.settlecheck} milliseconds.
+ */
+@Component
+public class SearchResultCache {
+
+    private final Cache<Key, Entry> cache;
+    private final Map<String, UserState> userStates = new ConcurrentHashMap<>();
+    private final UserState globalState = new UserState();
+    private final MeiliSearch meiliSearch;
+    private final MeiliSearchBatchWriter batchWriter;
+    private final String documentIndexName;
+    private final long settleCheckMillis;
+    private final AtomicBoolean settleCheckRunning = new AtomicBoolean();
+    // Updates up to this id are processed by meilisearch
+    private volatile long processedUpdateId = -1;
+    private volatile long lastSettleCheck = 0;
+
+    public SearchResultCache(MeiliSearch meiliSearch, MeiliSearchBatchWriter batchWriter,
+                             @Value("${meilisearch.indexprefix}") String indexPrefix,
+                             @Value("${search.cache.maxsize:67108864}") long maxSizeBytes,
+                             @Value("${search.cache.ttl:300}") long ttlSeconds,
+                             @Value("${search.cache.settlecheck:200}") long settleCheckMillis,
+                             MeterRegistry meterRegistry) {
+        this.meiliSearch = meiliSearch;
+        this.batchWriter = batchWriter;
+        this.documentIndexName = indexPrefix + "documents";
+        this.settleCheckMillis = settleCheckMillis;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxSizeBytes)
+                .weigher((Key key, Entry entry) -> entry.size)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        GuavaCacheMetrics.monitor(meterRegistry, cache, "search.results");
+    }
+
+    /**
+     * @param dateFrom start of the document date range of the search, {@code null} if open, like {@code dateTo}
+     * @param global   whether the page contains documents of other users
+     */
+    public SearchResponse<? extends Document> get(String userId, String query, Long dateFrom, Long dateTo, int offset, int limit, boolean global,
+                                                  Supplier<SearchResponse<? extends Document>> loader) {
+        Key key = new Key(userId, query, dateFrom, dateTo, offset, limit);
+        UserState userState = userStates.computeIfAbsent(userId, k -> new UserState());
+        // Read the generations before searching, a write in between must not be hidden by the cached page
+        long userGeneration = userState.generation.get();
+        long globalGeneration = globalState.generation.get();
+
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && entry.userGeneration == userGeneration && (!entry.global || entry.globalGeneration == globalGeneration)) {
+            return entry.response;
+        }
+
+        SearchResponse<? extends Document> response = loader.get();
+        if (response != null && response.getHits() != null && isSettled(userState) && (!global || isSettled(globalState))) {
+            cache.put(key, new Entry(response, userGeneration, globalGeneration, global));
+        }
+        return response;
+    }
+
+    private boolean isSettled(UserState userState) {
+        long updateId = userState.lastUpdateId.get();
+        if (updateId <= processedUpdateId) return true;
+        long now = System.currentTimeMillis();
+        // One request checks for all users, the others skip caching meanwhile
+        if (now - lastSettleCheck < settleCheckMillis || !settleCheckRunning.compareAndSet(false, true)) return false;
+        try {
+            lastSettleCheck = now;
+            // Updates are processed in order, so all updates up to the checked one are processed too
+            if (meiliSearch.isUpdateProcessed(documentIndexName, updateId) && updateId > processedUpdateId) processedUpdateId = updateId;
+        } catch (RuntimeException e) {
+            return false;
+        } finally {
+            settleCheckRunning.set(false);
+        }
+        return updateId <= processedUpdateId;
+    }
+
+    public void invalidateUser(String userId) {
+        if (userId == null) {
+            invalidateAll();
+            return;
+        }
+        long updateId = batchWriter.getLastUpdateId(documentIndexName);
+        userStates.computeIfAbsent(userId, k -> new UserState()).written(updateId);
+        globalState.written(updateId);
+    }
+
+    public void invalidateAll() {
+        long updateId = batchWriter.getLastUpdateId(documentIndexName);
+        userStates.values().forEach(userState -> userState.written(updateId));
+        globalState.written(updateId);
+        cache.invalidateAll();
+    }
+
+    private static int estimateSize(SearchResponse<? extends Document> response) {
+        long size = 256;
+        for (Document document : response.getHits()) {
+            size += 256 + length(document.getId()) + length(document.getTitle()) + length(document.getFilename())
+                    + length(document.getPdfTitle()) + length(document.getTextContent()) + length(document.getUserId())
+                    + length(document.getCompany()) + length(document.getCategory());
+            if (document.getTags() != null) {
+                for (String tag : document.getTags()) size += 48 + length(tag);
+            }
+            if (document instanceof DocumentHit) {
+                DocumentHit documentHit = (DocumentHit) document;
+                if (documentHit.getMatchesInfo() != null) size += length(documentHit.getMatchesInfo().toString());
+                if (documentHit.getFormatted() != null) size += length(documentHit.getFormatted().toString());
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    // Java strings take up to two bytes per character
+    private static long length(String value) {
+        return value == null ? 0 : 2L * value.length();
+    }
+
+    private static class UserState {
+        private final AtomicLong generation = new AtomicLong();
+        // Last update enqueued when a write was recorded, results are only cached once it is processed
+        private final AtomicLong lastUpdateId = new AtomicLong(-1);
+
+        private void written(long updateId) {
+            lastUpdateId.accumulateAndGet(updateId, Math::max);
+            generation.incrementAndGet();
+        }
+    }
+
+    private static class Entry {
+        private final SearchResponse<? extends Document> response;
+        private final long userGeneration;
+        private final long globalGeneration;
+        private final boolean global;
+        private final int size;
+
+        private Entry(SearchResponse<? extends Document> response, long userGeneration, long globalGeneration, boolean global) {
+            this.response = response;
+            this.userGeneration = userGeneration;
+            this.globalGeneration = globalGeneration;
+            this.global = global;
+            this.size = estimateSize(response);
+        }
+    }
+
+    private static class Key {
+        private final String userId;
+        private final String query;
+        private final Long dateFrom;
+        private final Long dateTo;
+        private final int offset;
+        private final int limit;
+
+        private Key(String userId, String query, Long dateFrom, Long dateTo, int offset, int limit) {
+            this.userId = userId;
+            this.query = query;
+            this.dateFrom = dateFrom;
+            this.dateTo = dateTo;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return offset == key.offset && limit == key.limit && userId.equals(key.userId) && query.equals(key.query)
+                    && Objects.equals(dateFrom, key.dateFrom) && Objects.equals(dateTo, key.dateTo);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, query, dateFrom, dateTo, offset, limit);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package de.skillkiller.documentdbackend.search;
+
+import de.skillkiller.documentdbackend.entity.User;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * In-memory secondary index of the user index: username, mail address and connect password to user id.
+ * Usernames and mail addresses are matched case-insensitively. The index is only used after its first rebuild,
+ * from then on it is kept in sync with every user write of {@link UserSearch}. Users written by other nodes are
+ * missing until {@link UserSearch} finds them in meilisearch on a miss and adds them.
+ */
+class UserLookupIndex {
+
+    private volatile Entries entries = new Entries();
+    private volatile boolean ready = false;
+
+    boolean isReady() {
+        return ready;
+    }
+
+    Optional<String> getUserIdByUsername(String username) {
+        return username == null ? Optional.empty() : Optional.ofNullable(entries.byUsername.get(normalize(username)));
+    }
+
+    Optional<String> getUserIdByMailAddress(String mailAddress) {
+        return mailAddress == null ? Optional.empty() : Optional.ofNullable(entries.byMailAddress.get(normalize(mailAddress)));
+    }
+
+    Optional<String> getUserIdByConnectPassword(String connectPassword) {
+        return connectPassword == null ? Optional.empty() : Optional.ofNullable(entries.byConnectPassword.get(connectPassword));
+    }
+
+    synchronized void put(User user) {
+        entries.put(user);
+    }
+
+    synchronized void remove(String userId) {
+        entries.remove(userId);
+    }
+
+    /**
+     * Replaces the index with the given users. Users read from meilisearch can miss writes which meilisearch has
+     * not applied yet, so the latest known state of recently written users is applied on top.
+     */
+    synchronized void rebuild(Collection<User> users, Supplier<Map<String, Optional<User>>> recentUsers) {
+        Entries rebuiltEntries = new Entries();
+        for (User user : users) {
+            rebuiltEntries.put(user);
+        }
+        for (Map.Entry<String, Optional<User>> recentUser : recentUsers.get().entrySet()) {
+            if (recentUser.getValue().isPresent()) rebuiltEntries.put(recentUser.getValue().get());
+            else rebuiltEntries.remove(recentUser.getKey());
+        }
+        entries = rebuiltEntries;
+        ready = true;
+    }
+
+    int size() {
+        return entries.keysById.size();
+    }
+
+    private static String normalize(String value) {
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    private static class Entries {
+        private final Map<String, String> byUsername = new ConcurrentHashMap<>();
+        private final Map<String, String> byMailAddress = new ConcurrentHashMap<>();
+        private final Map<String, String> byConnectPassword = new ConcurrentHashMap<>();
+        // Indexed keys per user id, to remove them when the user changes
+        private final Map<String, Keys> keysById = new ConcurrentHashMap<>();
+
+        private void put(User user) {
+            remove(user.getId());
+            Keys keys = new Keys(user);
+            if (keys.username != null) byUsername.put(keys.username, user.getId());
+            for (String mailAddress : keys.mailAddresses) byMailAddress.put(mailAddress, user.getId());
+            if (keys.connectPassword != null) byConnectPassword.put(keys.connectPassword, user.getId());
+            keysById.put(user.getId(), keys);
+        }
+
+        private void remove(String userId) {
+            Keys keys = keysById.remove(userId);
+            if (keys == null) return;
+            if (keys.username != null) byUsername.remove(keys.username, userId);
+            for (String mailAddress : keys.mailAddresses) byMailAddress.remove(mailAddress, userId);
+            if (keys.connectPassword != null) byConnectPassword.remove(keys.connectPassword, userId);
+        }
+    }
+
+    private static class Keys {
+        private final String username;
+        private final Set<String> mailAddresses = new HashSet<>();
+        private final String connectPassword;
+
+        private Keys(User user) {
+            this.username = user.getUsername() == null ? null : normalize(user.getUsername());
+            if (user.getMailAddresses() != null) {
+                for (String mailAddress : user.getMailAddresses()) {
+                    if (mailAddress != null) mailAddresses.add(normalize(mailAddress));
+                }
+            }
+            this.connectPassword = user.getConnectPassword();
+        }
+    }
+}
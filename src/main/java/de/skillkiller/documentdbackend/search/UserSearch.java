@@ -1,91 +1,150 @@
 package de.skillkiller.documentdbackend.search;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.internal.LinkedTreeMap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import de.skillkiller.documentdbackend.entity.User;
 import de.skillkiller.documentdbackend.entity.http.meilisearch.response.SearchResponse;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import kong.unirest.HttpResponse;
-import kong.unirest.Unirest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 @Component
 public class UserSearch {
 
     private static final Logger logger = LoggerFactory.getLogger(UserSearch.class);
-    private final String hostUrl;
-    private final String privateApiKey;
+    private final MeiliSearchClient meiliSearchClient;
     private final String userIndexName;
-    private final ObjectMapper objectMapper;
     private final MeiliSearch meiliSearch;
-
-    public UserSearch(@Value("${meilisearch.hosturl}") String hostUrl,
-                      @Value("${meilisearch.privateapikey}") String privateApiKey,
-                      @Value("${meilisearch.indexprefix}") String indexPrefix, ObjectMapper objectMapper, MeiliSearch meiliSearch) {
-        this.hostUrl = hostUrl;
-        this.privateApiKey = privateApiKey;
+    /*
+     * Users by id, read on every authenticated request. Writes put the written user, so a new modify date
+     * revokes older tokens immediately, although meilisearch applies the write asynchronously. The ttl must
+     * be longer than meilisearch takes to apply a write. Deleted users are kept as empty entries for the same reason.
+     */
+    private final Cache<String, Optional<User>> userCache;
+    // Counts user writes, a lookup which overlapped a write must not cache what it read
+    private final AtomicLong userWrites = new AtomicLong();
+    private final UserLookupIndex lookupIndex = new UserLookupIndex();
+
+    public UserSearch(MeiliSearchClient meiliSearchClient,
+                      @Value("${meilisearch.indexprefix}") String indexPrefix, MeiliSearch meiliSearch,
+                      @Value("${user.cache.size:10000}") long cacheSize,
+                      @Value("${user.cache.ttl:300}") long cacheTtlSeconds,
+                      MeterRegistry meterRegistry) {
+        this.meiliSearchClient = meiliSearchClient;
         this.userIndexName = indexPrefix + "users";
-        this.objectMapper = objectMapper;
         this.meiliSearch = meiliSearch;
+        this.userCache = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        GuavaCacheMetrics.monitor(meterRegistry, userCache, "users");
     }
 
     public boolean createOrReplaceUser(User user) throws TimeoutException, InterruptedException {
         //TODO Check if username already exists
-        return meiliSearch.createOrReplaceMeiliDocument(user, userIndexName);
+        boolean success = meiliSearch.createOrReplaceMeiliDocument(user, userIndexName);
+        userWritten(user, success);
+        return success;
     }
 
     public boolean createOrReplaceUserBypassWriteLock(User user) {
         //TODO Check if username already exists
-        return meiliSearch.createOrReplaceMeiliDocumentBypassWriteLock(user, userIndexName);
+        boolean success = meiliSearch.createOrReplaceMeiliDocumentBypassWriteLock(user, userIndexName);
+        userWritten(user, success);
+        return success;
+    }
+
+    private void userWritten(User user, boolean success) {
+        userWrites.incrementAndGet();
+        if (success) {
+            userCache.put(user.getId(), Optional.of(user.copy()));
+            lookupIndex.put(user);
+        } else {
+            userCache.invalidate(user.getId());
+        }
+    }
+
+    /**
+     * Reads all users and rebuilds the in-memory username, mail address and connect password lookups from them.
+     */
+    public void rebuildLookupIndex() {
+        List<User> users = new ArrayList<>();
+        List<User> page;
+        int offset = 0;
+        int limit = 100;
+        do {
+            page = getUsers(offset, limit);
+            if (page == null) {
+                logger.error("Could not read users, keep the current user lookup index");
+                return;
+            }
+            users.addAll(page);
+            offset += limit;
+        } while (page.size() == limit);
+        rebuildLookupIndex(users);
+    }
+
+    /**
+     * Rebuilds the lookups from already read users, for example during the nightly rebuild.
+     */
+    public void rebuildLookupIndex(List<User> users) {
+        lookupIndex.rebuild(users, () -> new HashMap<>(userCache.asMap()));
+        logger.info("Rebuilt user lookup index with " + lookupIndex.size() + " users");
     }
 
     public boolean createUserIndex() throws TimeoutException, InterruptedException {
         boolean success = meiliSearch.createIndex(userIndexName, "userid");
 
         if (success) {
-            Unirest.post(hostUrl + "/indexes/{index_uid}/settings")
+            meiliSearchClient.postUpdate("/indexes/{index_uid}/settings")
                     .body("{\"attributesForFaceting\":[\"username\",\"connectpassword\",\"mailaddresses\"],\"searchableAttributes\":[]}")
                     .routeParam("index_uid", userIndexName)
-                    .header("X-Meili-API-Key", privateApiKey)
                     .asEmptyAsync();
         }
         return success;
     }
 
     public List<User> getUsers(int offset, int limit) {
-        HttpResponse<List> request = Unirest.get(hostUrl + "/indexes/{index_uid}/documents")
+        HttpResponse<List<User>> request = meiliSearchClient.get("/indexes/{index_uid}/documents")
                 .queryString("offset", offset)
                 .queryString("limit", limit)
                 .routeParam("index_uid", userIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(List.class);
+                .asObject(meiliSearchClient.listOf(User.class));
 
-        List<User> users = new ArrayList<>(request.getBody().size());
-        for (Object o : request.getBody()) {
-            users.add(objectMapper.convertValue(o, User.class));
-        }
-
-        return users;
+        return request.getBody();
     }
 
     public Optional<User> getUserByUsername(String username) {
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
+        if (!lookupIndex.isReady()) return searchUserByUsername(username);
+        return lookup(lookupIndex.getUserIdByUsername(username), user -> username.equalsIgnoreCase(user.getUsername()),
+                () -> searchUserByUsername(username));
+    }
+
+    private Optional<User> searchUserByUsername(String username) {
+        HttpResponse<SearchResponse<User>> request = meiliSearchClient.post("/indexes/{index_uid}/search")
                 .body(String.format("{\"filters\": \"username = '%S'\"}", username))
                 .routeParam("index_uid", userIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
+                .asObject(meiliSearchClient.searchResponseOf(User.class));
 
         if (request.getStatus() == 200) {
-            SearchResponse response = request.getBody();
+            SearchResponse<User> response = request.getBody();
             if (response.getHits().size() == 1) {
-                return Optional.of(objectMapper.convertValue(response.getHits().get(0), User.class));
+                return Optional.of(response.getHits().get(0));
             } else if (response.getHits().size() > 1) {
                 throw new RuntimeException("Duplicated username " + username + "!\n Found " + response.getHits().size());
             }
@@ -93,57 +152,90 @@ public class UserSearch {
         return Optional.empty();
     }
 
+    /**
+     * @return a copy of the user, callers may modify it
+     */
     public Optional<User> getUserById(String userId) {
-        HttpResponse<LinkedTreeMap> request = Unirest.get(hostUrl + "/indexes/{index_uid}/documents/{document_id}")
+        Optional<User> cachedUser = userCache.getIfPresent(userId);
+        if (cachedUser != null) return cachedUser.map(User::copy);
+
+        long writes = userWrites.get();
+        HttpResponse<User> request = meiliSearchClient.get("/indexes/{index_uid}/documents/{document_id}")
                 .routeParam("index_uid", userIndexName)
                 .routeParam("document_id", userId)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(LinkedTreeMap.class);
+                .asObject(meiliSearchClient.json(User.class));
 
-        if (request.getStatus() == 200) {
-            return Optional.of(objectMapper.convertValue(request.getBody(), User.class));
+        if (request.getStatus() == 200 && request.getBody() != null) {
+            User user = request.getBody();
+            // A user written meanwhile is already in the cache and must not be replaced by the older read
+            if (userWrites.get() == writes) userCache.asMap().putIfAbsent(userId, Optional.of(user.copy()));
+            return Optional.of(user);
         }
         return Optional.empty();
     }
 
     public Optional<User> getUserByMailAddress(String mailAddress) {
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
+        if (!lookupIndex.isReady()) return searchUserByMailAddress(mailAddress);
+        return lookup(lookupIndex.getUserIdByMailAddress(mailAddress),
+                user -> user.getMailAddresses() != null && user.getMailAddresses().stream().anyMatch(mailAddress::equalsIgnoreCase),
+                () -> searchUserByMailAddress(mailAddress));
+    }
+
+    private Optional<User> searchUserByMailAddress(String mailAddress) {
+        HttpResponse<SearchResponse<User>> request = meiliSearchClient.post("/indexes/{index_uid}/search")
                 .body(String.format("{\"facetFilters\": [\"mailaddresses:%s\"],\"offset\":0,\"limit\":1}", mailAddress))
                 .routeParam("index_uid", userIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
+                .asObject(meiliSearchClient.searchResponseOf(User.class));
 
         if (request.getStatus() == 200 && request.getBody().getNbHits() == 1) {
-            return Optional.of(objectMapper.convertValue(request.getBody().getHits().get(0), User.class));
-        } else if (request.getBody().getNbHits() > 1) {
+            return Optional.of(request.getBody().getHits().get(0));
+        } else if (request.getStatus() == 200 && request.getBody().getNbHits() > 1) {
             logger.error("Multiple user with " + mailAddress);
         }
         return Optional.empty();
     }
 
     public Optional<User> getUserByConnectPassword(String connectPassword) {
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
+        if (!lookupIndex.isReady()) return searchUserByConnectPassword(connectPassword);
+        return lookup(lookupIndex.getUserIdByConnectPassword(connectPassword), user -> connectPassword.equals(user.getConnectPassword()),
+                () -> searchUserByConnectPassword(connectPassword));
+    }
+
+    private Optional<User> searchUserByConnectPassword(String connectPassword) {
+        HttpResponse<SearchResponse<User>> request = meiliSearchClient.post("/indexes/{index_uid}/search")
                 .body(String.format("{\"facetFilters\": [\"connectpassword:%s\"],\"offset\":0,\"limit\":1}", connectPassword))
                 .routeParam("index_uid", userIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
+                .asObject(meiliSearchClient.searchResponseOf(User.class));
 
         if (request.getStatus() == 200 && request.getBody().getNbHits() == 1) {
-            return Optional.of(objectMapper.convertValue(request.getBody().getHits().get(0), User.class));
-        } else if (request.getBody().getNbHits() > 1) {
+            return Optional.of(request.getBody().getHits().get(0));
+        } else if (request.getStatus() == 200 && request.getBody().getNbHits() > 1) {
             logger.error("Multiple user with connect password" + connectPassword);
         }
         return Optional.empty();
     }
 
+    /**
+     * Resolves a lookup through the index. Other nodes write users too, so an entry which no longer matches and
+     * a miss are searched in meilisearch, and a found user is added to the index.
+     */
+    private Optional<User> lookup(Optional<String> indexedUserId, Predicate<User> matches, Supplier<Optional<User>> search) {
+        Optional<User> indexedUser = indexedUserId.flatMap(this::getUserById).filter(matches);
+        if (indexedUser.isPresent()) return indexedUser;
+
+        Optional<User> foundUser = search.get();
+        // The cached state of the user may be newer than the searched one
+        foundUser.flatMap(user -> getUserById(user.getId())).ifPresent(lookupIndex::put);
+        return foundUser;
+    }
+
     public boolean hasSystemUsers() {
-        HttpResponse<SearchResponse> request = Unirest.post(hostUrl + "/indexes/{index_uid}/search")
+        HttpResponse<SearchResponse<User>> request = meiliSearchClient.post("/indexes/{index_uid}/search")
                 .body("{\"limit\": 1}")
                 .routeParam("index_uid", userIndexName)
-                .header("X-Meili-API-Key", privateApiKey)
-                .asObject(SearchResponse.class);
+                .asObject(meiliSearchClient.searchResponseOf(User.class));
 
-        return request.getBody().getHits() != null && request.getBody().getHits().size() >= 1;
+        return request.getBody() != null && request.getBody().getHits() != null && request.getBody().getHits().size() >= 1;
     }
 
     public boolean hasAllUpdatesProcessed() {
@@ -152,5 +244,8 @@ public class UserSearch {
 
     public void deleteUser(String userId) throws TimeoutException, InterruptedException {
         meiliSearch.deleteMeiliDocument(userIndexName, userId);
+        userWrites.incrementAndGet();
+        userCache.put(userId, Optional.empty());
+        lookupIndex.remove(userId);
     }
 }
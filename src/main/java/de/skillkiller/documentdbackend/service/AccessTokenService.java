@@ -1,36 +1,224 @@
 package de.skillkiller.documentdbackend.service;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import de.skillkiller.documentdbackend.entity.AccessToken;
 import de.skillkiller.documentdbackend.util.RandomString;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.Date;
-import java.util.Optional;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 
+/**
+ * Short-lived document access tokens. In the default {@code local} mode tokens are random strings kept by this
+ * node. Besides the map by token, every token is queued by its expiry, so the periodic eviction only touches
+ * expired tokens. If the store is full, the tokens expiring next are dropped.
+ * <p>
+ * In {@code signed} mode a token carries document id, user id and expiry encrypted with AES-GCM under a key derived
+ * from {@code accesstoken.secret}, so every node sharing the secret can verify it and no one else can read or alter it.
+ * <p>
+ * Tokens of deleted documents are rejected early through a bloom filter of revoked document ids, which is rotated
+ * once per token lifetime. The filter only knows revocations of this node. Other nodes reject such tokens because
+ * opening a document looks it up in the shared index and store, where it is gone.
+ */
 @Service
 public class AccessTokenService {
+    public static final long TOKEN_LIFETIME = 10 * 60 * 1000;
+    private static final String CIPHER_ALGORITHM = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
     private final ConcurrentHashMap<String, AccessToken> accessTokenConcurrentHashMap = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<AccessToken> expiryQueue = new PriorityBlockingQueue<>(64, Comparator.comparing(AccessToken::getExpire));
     private final RandomString randomString = new RandomString(10);
+    private final int maxSize;
+    private final Counter expiredTokens;
+    private final Counter droppedTokens;
+    private final boolean signed;
+    private final SecretKeySpec key;
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final int expectedRevocations;
+    private volatile BloomFilter<CharSequence> revokedDocuments;
+    private volatile BloomFilter<CharSequence> previousRevokedDocuments;
+
+    public AccessTokenService(@Value("${accesstoken.maxsize:100000}") int maxSize,
+                              @Value("${accesstoken.mode:local}") String mode,
+                              @Value("${accesstoken.secret:}") String secret,
+                              @Value("${accesstoken.revocations:10000}") int expectedRevocations,
+                              MeterRegistry meterRegistry) {
+        this.maxSize = maxSize;
+        this.signed = "signed".equalsIgnoreCase(mode);
+        if (signed && secret.isBlank()) {
+            throw new IllegalStateException("accesstoken.secret must be set to the same value on all nodes for signed access tokens");
+        }
+        // AES-256 key, any secret length is fine
+        this.key = signed ? new SecretKeySpec(DigestUtils.sha256(secret), "AES") : null;
+        this.expectedRevocations = expectedRevocations;
+        this.revokedDocuments = newRevocationFilter();
+        this.previousRevokedDocuments = newRevocationFilter();
+        meterRegistry.gaugeMapSize("accesstoken.live", Collections.emptyList(), accessTokenConcurrentHashMap);
+        this.expiredTokens = meterRegistry.counter("accesstoken.evicted", "cause", "expired");
+        this.droppedTokens = meterRegistry.counter("accesstoken.evicted", "cause", "size");
+    }
 
-    //TODO Scan hashmap periodically
     public Optional<AccessToken> isValidAndGet(String accessToken) {
-        if (accessTokenConcurrentHashMap.containsKey(accessToken)) {
-            AccessToken accessToken1 = accessTokenConcurrentHashMap.get(accessToken);
-            if (accessToken1.getExpire().after(new Date())) {
-                return Optional.of(accessToken1);
-            } else {
-                accessTokenConcurrentHashMap.remove(accessToken);
-            }
+        Optional<AccessToken> optionalAccessToken = signed ? decryptToken(accessToken) : getLocalToken(accessToken);
+        return optionalAccessToken.filter(token -> !isRevoked(token.getDocumentId()));
+    }
+
+    private Optional<AccessToken> getLocalToken(String accessToken) {
+        AccessToken accessToken1 = accessTokenConcurrentHashMap.get(accessToken);
+        if (accessToken1 != null && accessToken1.getExpire().after(new Date())) {
+            return Optional.of(accessToken1);
         }
+        // Expired tokens are removed by the eviction
         return Optional.empty();
     }
 
     public AccessToken putToken(AccessToken accessToken) {
+        if (signed) {
+            accessToken.setToken(encryptToken(accessToken));
+            return accessToken;
+        }
+
+        if (accessTokenConcurrentHashMap.size() >= maxSize) {
+            evictExpiredTokens();
+            while (accessTokenConcurrentHashMap.size() >= maxSize) {
+                AccessToken dropped = expiryQueue.poll();
+                if (dropped == null) break;
+                if (accessTokenConcurrentHashMap.remove(dropped.getToken(), dropped)) droppedTokens.increment();
+            }
+        }
+
         do {
-            accessToken.setToken(randomString.nextString());
-        } while (accessTokenConcurrentHashMap.containsKey(accessToken.getToken()));
-        accessTokenConcurrentHashMap.put(accessToken.getToken(), accessToken);
+            accessToken.setToken(nextToken());
+        } while (accessTokenConcurrentHashMap.putIfAbsent(accessToken.getToken(), accessToken) != null);
+        expiryQueue.add(accessToken);
         return accessToken;
     }
+
+    @Scheduled(fixedDelayString = "${accesstoken.evictioninterval:10000}")
+    public void evictExpiredTokens() {
+        Date now = new Date();
+        AccessToken next;
+        while ((next = expiryQueue.peek()) != null && !next.getExpire().after(now)) {
+            AccessToken expired = expiryQueue.poll();
+            if (expired == null) break;
+            if (expired.getExpire().after(now)) {
+                // Another thread took the head meanwhile, this one is still valid
+                expiryQueue.add(expired);
+                break;
+            }
+            if (accessTokenConcurrentHashMap.remove(expired.getToken(), expired)) expiredTokens.increment();
+        }
+    }
+
+    /**
+     * Rejects all tokens of the document which were issued until now, for example after it was deleted.
+     */
+    public void revokeDocument(String documentId) {
+        revokedDocuments.put(documentId);
+        accessTokenConcurrentHashMap.values().removeIf(token -> token.getDocumentId().equals(documentId));
+    }
+
+    // A revocation stays in the filters for at least one token lifetime
+    @Scheduled(fixedRate = TOKEN_LIFETIME, initialDelay = TOKEN_LIFETIME)
+    public void rotateRevocations() {
+        previousRevokedDocuments = revokedDocuments;
+        revokedDocuments = newRevocationFilter();
+    }
+
+    private boolean isRevoked(String documentId) {
+        return revokedDocuments.mightContain(documentId) || previousRevokedDocuments.mightContain(documentId);
+    }
+
+    private BloomFilter<CharSequence> newRevocationFilter() {
+        return BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedRevocations, 0.001);
+    }
+
+    // Token: base64url(IV followed by the encrypted length of documentId:documentId userId:expiry and the GCM tag).
+    // The length prefix keeps the ids apart whatever characters they contain.
+    private String encryptToken(AccessToken accessToken) {
+        String documentId = accessToken.getDocumentId();
+        byte[] payload = (documentId.length() + ":" + documentId + accessToken.getUserId() + ":" + accessToken.getExpire().getTime())
+                .getBytes(StandardCharsets.UTF_8);
+        byte[] iv = new byte[IV_LENGTH];
+        secureRandom.nextBytes(iv);
+        try {
+            byte[] encrypted = newCipher(Cipher.ENCRYPT_MODE, iv).doFinal(payload);
+            byte[] token = Arrays.copyOf(iv, IV_LENGTH + encrypted.length);
+            System.arraycopy(encrypted, 0, token, IV_LENGTH, encrypted.length);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Optional<AccessToken> decryptToken(String token) {
+        byte[] decoded;
+        try {
+            decoded = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        if (decoded.length <= IV_LENGTH + TAG_LENGTH) return Optional.empty();
+
+        byte[] payload;
+        try {
+            // Fails for tokens which were altered or encrypted with another secret
+            payload = newCipher(Cipher.DECRYPT_MODE, Arrays.copyOf(decoded, IV_LENGTH)).doFinal(decoded, IV_LENGTH, decoded.length - IV_LENGTH);
+        } catch (GeneralSecurityException e) {
+            return Optional.empty();
+        }
+
+        String fields = new String(payload, StandardCharsets.UTF_8);
+        int lengthEnd = fields.indexOf(':');
+        int expireStart = fields.lastIndexOf(':') + 1;
+        String documentId;
+        String userId;
+        Date expire;
+        try {
+            int documentIdEnd = lengthEnd + 1 + Integer.parseInt(fields.substring(0, lengthEnd));
+            if (documentIdEnd < lengthEnd + 1 || documentIdEnd >= expireStart) return Optional.empty();
+            documentId = fields.substring(lengthEnd + 1, documentIdEnd);
+            userId = fields.substring(documentIdEnd, expireStart - 1);
+            expire = new Date(Long.parseLong(fields.substring(expireStart)));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return Optional.empty();
+        }
+        if (!expire.after(new Date())) return Optional.empty();
+
+        AccessToken accessToken = new AccessToken();
+        accessToken.setToken(token);
+        accessToken.setDocumentId(documentId);
+        accessToken.setUserId(userId);
+        accessToken.setExpire(expire);
+        return Optional.of(accessToken);
+    }
+
+    // Cipher instances are not thread-safe and GCM needs a fresh IV per token
+    private Cipher newCipher(int mode, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+        return cipher;
+    }
+
+    // RandomString reuses its buffer and is not thread-safe
+    private String nextToken() {
+        synchronized (randomString) {
+            return randomString.nextString();
+        }
+    }
 }
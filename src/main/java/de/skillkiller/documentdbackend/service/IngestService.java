@@ -0,0 +1,392 @@
+package de.skillkiller.documentdbackend.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import de.skillkiller.documentdbackend.entity.Document;
+import de.skillkiller.documentdbackend.entity.IngestJob;
+import de.skillkiller.documentdbackend.entity.OcrJob;
+import de.skillkiller.documentdbackend.entity.User;
+import de.skillkiller.documentdbackend.search.DocumentSearch;
+import de.skillkiller.documentdbackend.util.FileUtil;
+import de.skillkiller.documentdbackend.util.PdfTextUtil;
+import de.skillkiller.documentdbackend.util.StoredFile;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+@Service
+public class IngestService {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestService.class);
+    private static final long FINISHED_JOB_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int INDEX_BATCH_SIZE = 100;
+    private final ConcurrentHashMap<String, IngestJob> jobs = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor extractionExecutorService;
+    // Coordinates batch uploads, their extractions run on the extraction pool
+    private final ThreadPoolExecutor batchExecutorService;
+    private final DocumentSearch documentSearch;
+    private final FileUtil fileUtil;
+    private final OcrQueueService ocrQueueService;
+    // Uploads of the same content by one user are checked for duplicates one after another
+    private final Striped<Lock> contentLocks = Striped.lazyWeakLock(64);
+    // Stored documents by user and content hash, until meilisearch surely finds them by their hash
+    private final Cache<String, Document> inFlightDocuments;
+
+    public IngestService(DocumentSearch documentSearch, FileUtil fileUtil, OcrQueueService ocrQueueService,
+                         @Value("${ingest.extraction.threads:2}") int extractionThreads,
+                         @Value("${ingest.queue.size:200}") int queueSize,
+                         @Value("${ingest.batch.queue.size:10}") int batchQueueSize,
+                         @Value("${ingest.inflight.ttl:60}") long inFlightTtlSeconds) {
+        this.documentSearch = documentSearch;
+        this.fileUtil = fileUtil;
+        this.ocrQueueService = ocrQueueService;
+        this.inFlightDocuments = CacheBuilder.newBuilder()
+                .expireAfterWrite(inFlightTtlSeconds, TimeUnit.SECONDS)
+                .build();
+        // Uploads beyond the queue are rejected instead of piling up in memory and on disk
+        this.extractionExecutorService = new ThreadPoolExecutor(extractionThreads, extractionThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new ThreadPoolExecutor.AbortPolicy());
+        this.batchExecutorService = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(batchQueueSize), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Persists the upload to disk and queues it for extraction, indexing and OCR.
+     * Returns as soon as the file is stored, independent of the document size.
+     */
+    public IngestJob submit(User user, InputStream inputStream, String originalFilename, OcrJob.Priority ocrPriority) throws IOException {
+        if (isSaturated()) throw new RejectedException();
+        IngestJob job = stage(user, inputStream, originalFilename, ocrPriority);
+        try {
+            extractionExecutorService.execute(() -> process(job));
+        } catch (RejectedExecutionException e) {
+            discard(Collections.singletonList(job));
+            throw new RejectedException();
+        }
+        logger.debug("Queued ingest job " + job.getId() + " for user " + user.getId());
+        return job;
+    }
+
+    /**
+     * Persists the upload to disk and registers a job for it without starting any processing.
+     * Staged jobs are processed with {@link #submitBatch(List)}.
+     */
+    public IngestJob stage(User user, InputStream inputStream, String originalFilename, OcrJob.Priority ocrPriority) throws IOException {
+        StoredFile storedFile = fileUtil.storePartialFile(user.getId(), inputStream);
+
+        IngestJob job = new IngestJob();
+        job.setId(UUID.randomUUID().toString().replace("-", ""));
+        job.setUserId(user.getId());
+        job.setOriginalFilename(originalFilename);
+        job.setStoredFile(storedFile);
+        job.setOcrPriority(ocrPriority);
+        jobs.put(job.getId(), job);
+        return job;
+    }
+
+    /**
+     * Queues the staged jobs for extraction and indexing and returns immediately. The jobs report their progress.
+     */
+    public List<IngestJob> submitBatch(List<IngestJob> stagedJobs) {
+        try {
+            batchExecutorService.execute(() -> processBatch(stagedJobs));
+        } catch (RejectedExecutionException e) {
+            discard(stagedJobs);
+            throw new RejectedException();
+        }
+        logger.debug("Queued batch of " + stagedJobs.size() + " uploads");
+        return stagedJobs;
+    }
+
+    /**
+     * Whether the batch queue is full, new batch uploads are rejected then.
+     */
+    public boolean isBatchSaturated() {
+        return batchExecutorService.getQueue().remainingCapacity() == 0;
+    }
+
+    /**
+     * Extracts the staged jobs in parallel on the extraction pool and indexes the resulting documents
+     * with batched meilisearch writes, OCR is only queued. Uploads with the same content as an earlier
+     * upload of the batch are not extracted, they become duplicates of its document.
+     */
+    private void processBatch(List<IngestJob> stagedJobs) {
+        Map<String, IngestJob> jobsByContentHash = new HashMap<>();
+        Map<IngestJob, IngestJob> duplicateJobs = new LinkedHashMap<>();
+        List<IngestJob> uniqueJobs = new ArrayList<>();
+        for (IngestJob job : stagedJobs) {
+            IngestJob firstJob = jobsByContentHash.putIfAbsent(job.getStoredFile().getSha256(), job);
+            if (firstJob == null) uniqueJobs.add(job);
+            else duplicateJobs.put(job, firstJob);
+        }
+
+        for (int from = 0; from < uniqueJobs.size(); from += INDEX_BATCH_SIZE) {
+            List<IngestJob> chunkJobs = uniqueJobs.subList(from, Math.min(from + INDEX_BATCH_SIZE, uniqueJobs.size()));
+            List<CompletableFuture<Document>> extractions = new ArrayList<>(chunkJobs.size());
+            for (IngestJob job : chunkJobs) {
+                try {
+                    extractions.add(CompletableFuture.supplyAsync(() -> extract(job), extractionExecutorService));
+                } catch (RejectedExecutionException e) {
+                    // The extraction queue is full of single uploads, extract on this thread instead
+                    extractions.add(CompletableFuture.completedFuture(extract(job)));
+                }
+            }
+
+            List<IngestJob> batchJobs = new ArrayList<>();
+            List<Document> batchDocuments = new ArrayList<>();
+            for (int i = 0; i < chunkJobs.size(); i++) {
+                Document document = extractions.get(i).join();
+                if (document != null) {
+                    batchJobs.add(chunkJobs.get(i));
+                    batchDocuments.add(document);
+                }
+            }
+            if (batchDocuments.isEmpty()) continue;
+
+            batchJobs.forEach(job -> job.updateStatus(IngestJob.Status.INDEXING));
+            try {
+                if (!documentSearch.createOrReplaceDocuments(batchDocuments)) {
+                    throw new IOException("Meilisearch rejected document batch");
+                }
+            } catch (Exception e) {
+                for (int i = 0; i < batchJobs.size(); i++) {
+                    fail(batchJobs.get(i), batchDocuments.get(i), e);
+                }
+                continue;
+            }
+            for (int i = 0; i < batchJobs.size(); i++) {
+                completeIndexing(batchJobs.get(i), batchDocuments.get(i));
+            }
+        }
+
+        for (Map.Entry<IngestJob, IngestJob> duplicateJob : duplicateJobs.entrySet()) {
+            completeDuplicate(duplicateJob.getKey(), duplicateJob.getValue());
+        }
+
+        logger.debug("Processed batch of " + stagedJobs.size() + " uploads with " + duplicateJobs.size() + " duplicates");
+    }
+
+    private void completeDuplicate(IngestJob job, IngestJob firstJob) {
+        File file = job.getStoredFile().getFile();
+        if (file.exists() && !file.delete()) {
+            logger.warn("Delete from partial upload file " + file.getName() + " failed!");
+        }
+        Document document = firstJob.getDocument();
+        if (document != null && firstJob.getStatus() != IngestJob.Status.FAILED) {
+            job.setDocument(document);
+            job.updateStatus(IngestJob.Status.DUPLICATE);
+        } else {
+            job.setMessage(firstJob.getMessage());
+            job.updateStatus(IngestJob.Status.FAILED);
+        }
+    }
+
+    public void discard(List<IngestJob> stagedJobs) {
+        for (IngestJob job : stagedJobs) {
+            jobs.remove(job.getId());
+            File file = job.getStoredFile().getFile();
+            if (file.exists() && !file.delete()) {
+                logger.warn("Delete from partial upload file " + file.getName() + " failed!");
+            }
+        }
+    }
+
+    public Optional<IngestJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    private void process(IngestJob job) {
+        Document document = extract(job);
+        if (document == null) return;
+
+        job.updateStatus(IngestJob.Status.INDEXING);
+        try {
+            documentSearch.createOrReplaceDocument(document);
+        } catch (Exception e) {
+            fail(job, document, e);
+            return;
+        }
+        completeIndexing(job, document);
+    }
+
+    // Returns null when the job is finished already, either as duplicate or as failure
+    private Document extract(IngestJob job) {
+        StoredFile storedFile = job.getStoredFile();
+        Document document = new Document();
+        String contentKey = getContentKey(job.getUserId(), storedFile.getSha256());
+        Lock lock = contentLocks.get(contentKey);
+        lock.lock();
+        try {
+            // Meilisearch applies writes asynchronously, a document stored just before is not found by its hash yet
+            Optional<Document> duplicateDocument = Optional.ofNullable(inFlightDocuments.getIfPresent(contentKey));
+            if (duplicateDocument.isEmpty()) {
+                duplicateDocument = documentSearch.getDocumentByContentHashInUserScope(job.getUserId(), storedFile.getSha256());
+            }
+            if (duplicateDocument.isPresent()) {
+                Files.delete(storedFile.getFile().toPath());
+                job.setDocument(duplicateDocument.get());
+                job.updateStatus(IngestJob.Status.DUPLICATE);
+                logger.debug("Upload is a duplicate of document " + duplicateDocument.get().getId());
+                return null;
+            }
+
+            job.updateStatus(IngestJob.Status.EXTRACTING);
+            document.setUserId(job.getUserId());
+            document.setDocumentDate(new Date());
+            document.setContentHash(storedFile.getSha256());
+            try (PDDocument pdfDocument = PDDocument.load(storedFile.getFile(), MemoryUsageSetting.setupTempFileOnly())) {
+                document.setPages(pdfDocument.getNumberOfPages());
+                document.setPdfTitle(pdfDocument.getDocumentInformation().getTitle());
+                document.setId(DigestUtils.sha1Hex(System.currentTimeMillis() + "#" + job.getId() + "#" + document.getPdfTitle()));
+
+                List<String> pageTexts = PdfTextUtil.getPageTexts(pdfDocument);
+                String content = PdfTextUtil.join(pageTexts);
+                if (!content.isBlank()) {
+                    document.setTextContent(content);
+                }
+                job.setOcrRequired(!pageTexts.stream().allMatch(PdfTextUtil::hasTextLayer));
+            }
+
+            String title = job.getOriginalFilename();
+            if (title != null && title.contains(".")) {
+                title = title.substring(0, title.lastIndexOf("."));
+            }
+            document.setTitle(title);
+
+            String fileName = document.getId() + "-" + getAllowedFileName(job.getOriginalFilename());
+            if (!fileName.endsWith(".pdf")) fileName = fileName + ".pdf";
+
+            document.setFilename(fileName);
+            fileUtil.moveToDocument(storedFile, document);
+            inFlightDocuments.put(contentKey, document);
+            return document;
+        } catch (Exception e) {
+            fail(job, null, e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String getContentKey(String userId, String sha256) {
+        return userId + "/" + sha256;
+    }
+
+    private void completeIndexing(IngestJob job, Document document) {
+        job.setDocument(document);
+        logger.debug("Uploaded and created Document " + document.getId());
+
+        if (job.isOcrRequired()) {
+            try {
+                ocrQueueService.enqueue(document, job.getOcrPriority(), job);
+            } catch (IOException e) {
+                logger.error("Cannot journal OCR job for document " + document.getId(), e);
+                job.setMessage(e.getMessage());
+                job.updateStatus(IngestJob.Status.FAILED);
+            }
+        } else {
+            job.updateStatus(IngestJob.Status.COMPLETED);
+        }
+    }
+
+    private void fail(IngestJob job, Document document, Exception e) {
+        logger.error("Something go wrong by ingest job " + job.getId(), e);
+        job.setMessage(e.getMessage());
+        job.updateStatus(IngestJob.Status.FAILED);
+        StoredFile storedFile = job.getStoredFile();
+        if (storedFile.getFile().exists() && !storedFile.getFile().delete()) {
+            logger.warn("Delete from partial upload file " + storedFile.getFile().getName() + " failed!");
+        }
+        if (document != null) {
+            inFlightDocuments.invalidate(getContentKey(document.getUserId(), document.getContentHash()));
+            if (fileUtil.exists(document) && !fileUtil.delete(document)) {
+                logger.warn("Delete from document file " + document.getId() + " failed!");
+            }
+            try {
+                documentSearch.deleteDocument(document);
+            } catch (TimeoutException | InterruptedException timeoutException) {
+                logger.error("Ran in timeout by deleting document", e);
+            }
+        }
+    }
+
+    /**
+     * Whether the extraction queue is full, new uploads are rejected then.
+     */
+    public boolean isSaturated() {
+        return extractionExecutorService.getQueue().remainingCapacity() == 0;
+    }
+
+    @Scheduled(fixedRate = 10 * 60 * 1000)
+    public void removeFinishedJobs() {
+        long oldestModifyDate = System.currentTimeMillis() - FINISHED_JOB_RETENTION_MILLIS;
+        jobs.values().removeIf(job -> job.getStatus().isFinished() && job.getModifyDate().getTime() < oldestModifyDate);
+        removeAbandonedUploads();
+    }
+
+    /**
+     * Jobs only live in memory, the partial uploads of jobs lost by a restart are never processed.
+     * Deletes partial uploads older than the job retention which belong to no known job.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void removeAbandonedUploads() {
+        long oldestModifyDate = System.currentTimeMillis() - FINISHED_JOB_RETENTION_MILLIS;
+        Set<File> knownFiles = jobs.values().stream()
+                .map(job -> job.getStoredFile().getFile().getAbsoluteFile())
+                .collect(Collectors.toSet());
+        try (Stream<File> partialUploads = fileUtil.listPartialUploads()) {
+            partialUploads
+                    .filter(file -> file.lastModified() < oldestModifyDate)
+                    .filter(file -> !knownFiles.contains(file.getAbsoluteFile()))
+                    .forEach(file -> {
+                        if (file.delete()) logger.info("Deleted abandoned partial upload " + file.getAbsolutePath());
+                        else logger.warn("Delete from abandoned partial upload " + file.getAbsolutePath() + " failed!");
+                    });
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("Cannot list partial uploads", e);
+        }
+    }
+
+    private String getAllowedFileName(String filename) {
+        String allowedChars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        if (filename == null) return "";
+        if (filename.endsWith(".pdf")) filename = filename.substring(0, filename.length() - 4);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (int i = 0; i < filename.length(); i++) {
+            char charAt = filename.charAt(i);
+            if (allowedChars.contains(String.valueOf(charAt))) {
+                stringBuilder.append(charAt);
+            }
+        }
+
+        return stringBuilder.toString();
+    }
+
+    /**
+     * The ingest queue is full, the upload should be retried later.
+     */
+    public static class RejectedException extends RuntimeException {
+        private RejectedException() {
+            super("Ingest queue is full");
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package de.skillkiller.documentdbackend.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts failed logins per username and per client address. Once a limit is reached, further logins of that
+ * username or from that address are refused without hashing the password until the window has passed.
+ */
+@Service
+public class LoginThrottleService {
+
+    private final Cache<String, AtomicInteger> failuresByUsername;
+    private final Cache<String, AtomicInteger> failuresByAddress;
+    private final int maxFailuresPerUsername;
+    private final int maxFailuresPerAddress;
+    private final Counter throttledLogins;
+
+    public LoginThrottleService(@Value("${login.throttle.window:300}") long windowSeconds,
+                                @Value("${login.throttle.username:10}") int maxFailuresPerUsername,
+                                @Value("${login.throttle.address:50}") int maxFailuresPerAddress,
+                                MeterRegistry meterRegistry) {
+        this.maxFailuresPerUsername = maxFailuresPerUsername;
+        this.maxFailuresPerAddress = maxFailuresPerAddress;
+        // The window starts with the first failure, increments do not extend it
+        this.failuresByUsername = CacheBuilder.newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(windowSeconds, TimeUnit.SECONDS)
+                .build();
+        this.failuresByAddress = CacheBuilder.newBuilder()
+                .maximumSize(100000)
+                .expireAfterWrite(windowSeconds, TimeUnit.SECONDS)
+                .build();
+        this.throttledLogins = meterRegistry.counter("login.throttled");
+    }
+
+    public boolean isThrottled(String username, String address) {
+        boolean throttled = exceeds(failuresByUsername, normalize(username), maxFailuresPerUsername)
+                || exceeds(failuresByAddress, address, maxFailuresPerAddress);
+        if (throttled) throttledLogins.increment();
+        return throttled;
+    }
+
+    public void loginFailed(String username, String address) {
+        increment(failuresByUsername, normalize(username));
+        increment(failuresByAddress, address);
+    }
+
+    public void loginSucceeded(String username) {
+        if (username != null) failuresByUsername.invalidate(normalize(username));
+    }
+
+    private static boolean exceeds(Cache<String, AtomicInteger> failures, String key, int maxFailures) {
+        if (key == null) return false;
+        AtomicInteger count = failures.getIfPresent(key);
+        return count != null && count.get() >= maxFailures;
+    }
+
+    private static void increment(Cache<String, AtomicInteger> failures, String key) {
+        if (key == null) return;
+        try {
+            failures.get(key, AtomicInteger::new).incrementAndGet();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String normalize(String username) {
+        return username == null ? null : username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,288 @@
+package de.skillkiller.documentdbackend.service;
+
+import de.skillkiller.documentdbackend.entity.Document;
+import de.skillkiller.documentdbackend.entity.IngestJob;
+import de.skillkiller.documentdbackend.entity.OcrJob;
+import de.skillkiller.documentdbackend.search.DocumentSearch;
+import de.skillkiller.documentdbackend.task.PDFOCR;
+import de.skillkiller.documentdbackend.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Durable OCR queue. Every job is journaled as an empty file whose name encodes priority, enqueue time and
+ * document id, and the file is only deleted after the job has finished. Pending jobs are replayed at startup.
+ * At most {@code ocr.queue.window} jobs are held in memory, the rest stays on disk and is loaded when the
+ * window drains. A job with a higher priority displaces the lowest in-memory job when the window is full.
+ * A failed job keeps its journal file with the number of failed attempts as content and is retried at the next
+ * start. After {@code ocr.queue.attempts} failures it is moved to the {@code failed} directory of the journal.
+ */
+@Service
+public class OcrQueueService {
+
+    private static final Logger logger = LoggerFactory.getLogger(OcrQueueService.class);
+    private static final String FAILED_DIRECTORY = "failed";
+    private final File journalDir;
+    private final int window;
+    private final int maxAttempts;
+    private final int workers;
+    private final ExecutorService workerExecutorService;
+    private final DocumentSearch documentSearch;
+    private final FileUtil fileUtil;
+    private final OcrService ocrService;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final TreeSet<OcrJob> queue = new TreeSet<>();
+    private final Set<String> knownJournalFiles = new HashSet<>();
+    // Jobs leave the window without their ingest job, it is looked up again when they return from the journal
+    private final Map<String, IngestJob> ingestJobsByDocumentId = new HashMap<>();
+    private boolean spilled = false;
+
+    public OcrQueueService(DocumentSearch documentSearch, FileUtil fileUtil, OcrService ocrService,
+                           @Value("${ocr.journal.path:ocr-journal/}") String journalPath,
+                           @Value("${ocr.queue.window:1000}") int window,
+                           @Value("${ocr.queue.workers:3}") int workers,
+                           @Value("${ocr.queue.attempts:3}") int maxAttempts) {
+        this.documentSearch = documentSearch;
+        this.fileUtil = fileUtil;
+        this.ocrService = ocrService;
+        this.journalDir = new File(journalPath);
+        this.window = window;
+        this.workers = workers;
+        this.maxAttempts = maxAttempts;
+        this.workerExecutorService = Executors.newFixedThreadPool(workers);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startWorkers() {
+        journalDir.mkdirs();
+        lock.lock();
+        try {
+            spilled = true;
+            refillFromJournal();
+            logger.info("Replayed " + queue.size() + " pending OCR jobs from journal" + (spilled ? ", more are waiting on disk" : ""));
+        } finally {
+            lock.unlock();
+        }
+
+        for (int i = 0; i < workers; i++) {
+            workerExecutorService.execute(this::work);
+        }
+    }
+
+    public void enqueue(Document document, OcrJob.Priority priority) throws IOException {
+        enqueue(document, priority, null);
+    }
+
+    public void enqueue(Document document, OcrJob.Priority priority, IngestJob ingestJob) throws IOException {
+        OcrJob ocrJob = new OcrJob();
+        ocrJob.setDocumentId(document.getId());
+        ocrJob.setDocument(document);
+        ocrJob.setPriority(priority);
+        ocrJob.setEnqueueTime(System.currentTimeMillis());
+        ocrJob.setSequence(sequence.incrementAndGet() % 1_000_000);
+        ocrJob.setIngestJob(ingestJob);
+
+        lock.lock();
+        try {
+            // Under the lock, a refill must not see the journal file before the job is offered
+            Files.createFile(new File(journalDir, ocrJob.getJournalFileName()).toPath());
+            if (ingestJob != null) {
+                ingestJob.updateStatus(IngestJob.Status.OCR_QUEUED);
+                ingestJobsByDocumentId.put(document.getId(), ingestJob);
+            }
+            offer(ocrJob);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueuedJobCount() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Must hold the lock. Returns false when the job stays on disk only.
+    private boolean offer(OcrJob ocrJob) {
+        if (queue.size() >= window) {
+            spilled = true;
+            OcrJob lowestJob = queue.last();
+            if (ocrJob.compareTo(lowestJob) >= 0) return false;
+            queue.pollLast();
+            knownJournalFiles.remove(lowestJob.getJournalFileName());
+        }
+        queue.add(ocrJob);
+        knownJournalFiles.add(ocrJob.getJournalFileName());
+        notEmpty.signal();
+        return true;
+    }
+
+    // Must hold the lock
+    private void refillFromJournal() {
+        String[] journalFiles = journalDir.list((dir, name) -> name.endsWith(".job"));
+        if (journalFiles == null) return;
+        Arrays.sort(journalFiles);
+
+        spilled = false;
+        for (String journalFile : journalFiles) {
+            if (knownJournalFiles.contains(journalFile)) continue;
+            try {
+                // Journal files sort in processing order, no later file fits into the window either
+                if (!offer(OcrJob.fromJournalFileName(journalFile))) break;
+            } catch (RuntimeException e) {
+                logger.error("Invalid OCR journal file " + journalFile, e);
+            }
+        }
+    }
+
+    private OcrJob take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (queue.size() < Math.max(1, window / 2) && spilled) {
+                    refillFromJournal();
+                }
+                OcrJob ocrJob = queue.pollFirst();
+                if (ocrJob != null) return ocrJob;
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            OcrJob ocrJob;
+            try {
+                ocrJob = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            IngestJob ingestJob = getIngestJob(ocrJob);
+            if (ingestJob != null) ingestJob.updateStatus(IngestJob.Status.OCR_RUNNING);
+            try {
+                // Fresh uploads may not be searchable yet, replayed jobs only know the document id
+                Optional<Document> optionalDocument = ocrJob.getDocument() != null ? Optional.of(ocrJob.getDocument()) : documentSearch.getDocumentById(ocrJob.getDocumentId());
+                if (optionalDocument.isPresent()) {
+                    new PDFOCR(optionalDocument.get(), documentSearch, fileUtil, ocrService).run();
+                } else {
+                    logger.warn("Skip OCR job for missing document " + ocrJob.getDocumentId());
+                }
+            } catch (IOException | TimeoutException | RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Libraries may wrap the interrupt of the shutdown, that is no failed attempt
+                    logger.info("OCR job for document " + ocrJob.getDocumentId() + " interrupted, it is replayed at the next start");
+                    return;
+                }
+                logger.error("OCR job for document " + ocrJob.getDocumentId() + " failed", e);
+                failed(ocrJob);
+                if (ingestJob != null) {
+                    ingestJob.setMessage(e.getMessage());
+                    ingestJob.updateStatus(IngestJob.Status.FAILED);
+                }
+                continue;
+            } catch (InterruptedException e) {
+                // Shutdown, the journal file is replayed at the next start
+                return;
+            }
+            completed(ocrJob);
+            if (ingestJob != null) ingestJob.updateStatus(IngestJob.Status.COMPLETED);
+        }
+    }
+
+    private IngestJob getIngestJob(OcrJob ocrJob) {
+        if (ocrJob.getIngestJob() != null) return ocrJob.getIngestJob();
+        lock.lock();
+        try {
+            return ingestJobsByDocumentId.get(ocrJob.getDocumentId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void completed(OcrJob ocrJob) {
+        File journalFile = new File(journalDir, ocrJob.getJournalFileName());
+        if (!journalFile.delete()) {
+            logger.warn("Delete from OCR journal file " + journalFile.getName() + " failed!");
+        }
+        forget(ocrJob, true);
+    }
+
+    /**
+     * Counts the failed attempt in the journal file. The job is retried at the next start, or moved to the
+     * failed directory when it has no attempts left.
+     */
+    private void failed(OcrJob ocrJob) {
+        File journalFile = new File(journalDir, ocrJob.getJournalFileName());
+        boolean deadLetter = false;
+        try {
+            int attempts = readAttempts(journalFile) + 1;
+            if (attempts >= maxAttempts) {
+                File failedDir = new File(journalDir, FAILED_DIRECTORY);
+                Files.createDirectories(failedDir.toPath());
+                Files.move(journalFile.toPath(), new File(failedDir, journalFile.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                logger.error("OCR job for document " + ocrJob.getDocumentId() + " failed " + attempts + " times, moved it to " + failedDir.getPath());
+                deadLetter = true;
+            } else {
+                Files.write(journalFile.toPath(), String.valueOf(attempts).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            logger.error("Cannot record failed attempt in OCR journal file " + journalFile.getName(), e);
+        }
+        // A job with attempts left stays known, so it is not retried before the next start
+        forget(ocrJob, deadLetter);
+    }
+
+    private void forget(OcrJob ocrJob, boolean removeJournalFile) {
+        lock.lock();
+        try {
+            if (removeJournalFile) knownJournalFiles.remove(ocrJob.getJournalFileName());
+            ingestJobsByDocumentId.remove(ocrJob.getDocumentId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int readAttempts(File journalFile) throws IOException {
+        String content = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8).trim();
+        if (content.isEmpty()) return 0;
+        try {
+            return Integer.parseInt(content);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        workerExecutorService.shutdownNow();
+        workerExecutorService.awaitTermination(30, TimeUnit.SECONDS);
+    }
+}
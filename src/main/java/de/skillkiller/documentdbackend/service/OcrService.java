@@ -0,0 +1,177 @@
+package de.skillkiller.documentdbackend.service;
+
+import de.skillkiller.documentdbackend.task.PageOcrResult;
+import de.skillkiller.documentdbackend.task.PooledTesseract;
+import de.skillkiller.documentdbackend.util.PdfTextUtil;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs OCR at page granularity on a pool with one initialised Tesseract engine per worker thread.
+ * Only pages without a text layer are recognised, the result is merged with the text of the other pages.
+ * Pages are rendered one after another by the calling thread, because PDFBox documents are not thread-safe,
+ * and recognised in parallel. The number of rendered pages waiting for an engine is bounded.
+ * <p>
+ * In adaptive mode pages are first rendered in grayscale at the initial DPI. Only pages whose mean
+ * Tesseract confidence stays below the threshold are rendered and recognised again at the maximum DPI.
+ * <p>
+ * With {@code ocr.mode=process} pages are rendered and recognised by an {@link OcrWorkerPool} instead,
+ * so native crashes and page images stay out of this JVM.
+ */
+@Service
+public class OcrService {
+
+    private static final Logger logger = LoggerFactory.getLogger(OcrService.class);
+    private final ExecutorService pageExecutorService;
+    private final ThreadLocal<PooledTesseract> tesseracts;
+    private final ConcurrentLinkedQueue<PooledTesseract> createdTesseracts = new ConcurrentLinkedQueue<>();
+    private final int threads;
+    private final boolean adaptive;
+    private final int initialDpi;
+    private final int maxDpi;
+    private final int confidenceThreshold;
+    private final OcrWorkerPool ocrWorkerPool;
+
+    public OcrService(@Value("${tesseract.datapath}") String tesseractDataPath,
+                      @Value("${tesseract.language}") String tesseractLanguage,
+                      @Value("${ocr.threads:0}") int threads,
+                      @Value("${ocr.adaptive:true}") boolean adaptive,
+                      @Value("${ocr.dpi.initial:300}") int initialDpi,
+                      @Value("${ocr.dpi.max:600}") int maxDpi,
+                      @Value("${ocr.confidence.threshold:70}") int confidenceThreshold,
+                      @Value("${ocr.mode:inprocess}") String mode,
+                      @Value("${ocr.worker.jvmoptions:-Xmx1g}") String workerJvmOptions,
+                      @Value("${ocr.worker.pagetimeout:300000}") long workerPageTimeoutMillis) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.adaptive = adaptive;
+        this.initialDpi = initialDpi;
+        this.maxDpi = maxDpi;
+        this.confidenceThreshold = confidenceThreshold;
+        this.pageExecutorService = Executors.newFixedThreadPool(this.threads);
+        if (mode.equals("process")) {
+            this.ocrWorkerPool = new OcrWorkerPool(this.threads, tesseractDataPath, tesseractLanguage, workerJvmOptions, workerPageTimeoutMillis);
+            logger.info("OCR runs in " + this.threads + " worker processes");
+        } else {
+            this.ocrWorkerPool = null;
+        }
+        this.tesseracts = ThreadLocal.withInitial(() -> {
+            PooledTesseract tesseract = new PooledTesseract(tesseractDataPath, tesseractLanguage);
+            createdTesseracts.add(tesseract);
+            return tesseract;
+        });
+    }
+
+    /**
+     * @throws InterruptedException on shutdown, the OCR of the file is not finished then
+     */
+    public String ocr(File pdfFile) throws IOException, InterruptedException {
+        try (PDDocument pdfDocument = PDDocument.load(pdfFile, MemoryUsageSetting.setupTempFileOnly())) {
+            PDFRenderer pdfRenderer = new PDFRenderer(pdfDocument);
+            int numberOfPages = pdfDocument.getNumberOfPages();
+            List<String> pageTexts = PdfTextUtil.getPageTexts(pdfDocument);
+            List<Integer> imagePages = new ArrayList<>();
+            for (int i = 0; i < numberOfPages; i++) {
+                if (!PdfTextUtil.hasTextLayer(pageTexts.get(i))) imagePages.add(i);
+            }
+            logger.debug("OCR " + imagePages.size() + " of " + numberOfPages + " pages of " + pdfFile.getName() + " without text layer");
+
+            PageOcrResult[] results = new PageOcrResult[numberOfPages];
+            if (adaptive) {
+                ocrPages(pdfFile, pdfRenderer, imagePages, initialDpi, ImageType.GRAY, results);
+
+                // Blank pages have no confidence at all, a higher resolution does not help them
+                List<Integer> lowConfidencePages = new ArrayList<>();
+                for (int i : imagePages) {
+                    if (!results[i].getText().isBlank() && results[i].getMeanConfidence() < confidenceThreshold && initialDpi < maxDpi) {
+                        lowConfidencePages.add(i);
+                    }
+                }
+
+                if (!lowConfidencePages.isEmpty()) {
+                    logger.debug("Escalate " + lowConfidencePages.size() + " of " + numberOfPages + " pages of " + pdfFile.getName() + " to " + maxDpi + " DPI");
+                    PageOcrResult[] escalatedResults = new PageOcrResult[numberOfPages];
+                    ocrPages(pdfFile, pdfRenderer, lowConfidencePages, maxDpi, ImageType.GRAY, escalatedResults);
+                    for (int page : lowConfidencePages) {
+                        if (escalatedResults[page].getMeanConfidence() > results[page].getMeanConfidence()) {
+                            results[page] = escalatedResults[page];
+                        }
+                    }
+                }
+            } else {
+                ocrPages(pdfFile, pdfRenderer, imagePages, maxDpi, ImageType.RGB, results);
+            }
+
+            for (int i : imagePages) {
+                if (!results[i].getText().isBlank()) pageTexts.set(i, results[i].getText());
+            }
+            return PdfTextUtil.join(pageTexts);
+        }
+    }
+
+    private void ocrPages(File pdfFile, PDFRenderer pdfRenderer, List<Integer> pages, int dpi, ImageType imageType, PageOcrResult[] results) throws IOException, InterruptedException {
+        Semaphore renderedPages = new Semaphore(threads);
+        List<Future<PageOcrResult>> pageResults = new ArrayList<>(pages.size());
+
+        try {
+            for (int page : pages) {
+                if (ocrWorkerPool != null) {
+                    boolean gray = imageType == ImageType.GRAY;
+                    pageResults.add(pageExecutorService.submit(() -> ocrWorkerPool.ocrPage(pdfFile, page, dpi, gray)));
+                    continue;
+                }
+
+                renderedPages.acquire();
+                BufferedImage bufferedImage = renderPage(pdfRenderer, page, dpi, imageType, renderedPages);
+                pageResults.add(pageExecutorService.submit(() -> {
+                    try {
+                        return tesseracts.get().ocr(bufferedImage, dpi);
+                    } finally {
+                        renderedPages.release();
+                    }
+                }));
+            }
+
+            for (int i = 0; i < pages.size(); i++) {
+                results[pages.get(i)] = pageResults.get(i).get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("OCR of page failed", e.getCause());
+        } finally {
+            pageResults.forEach(pageResult -> pageResult.cancel(false));
+        }
+    }
+
+    private BufferedImage renderPage(PDFRenderer pdfRenderer, int pageIndex, int dpi, ImageType imageType, Semaphore renderedPages) throws IOException {
+        try {
+            return pdfRenderer.renderImageWithDPI(pageIndex, dpi, imageType);
+        } catch (IOException | RuntimeException e) {
+            renderedPages.release();
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        pageExecutorService.shutdownNow();
+        if (ocrWorkerPool != null) ocrWorkerPool.close();
+        if (!pageExecutorService.awaitTermination(30, TimeUnit.SECONDS)) {
+            logger.warn("OCR workers did not terminate, skip releasing tesseract engines");
+            return;
+        }
+        createdTesseracts.forEach(PooledTesseract::close);
+    }
+}
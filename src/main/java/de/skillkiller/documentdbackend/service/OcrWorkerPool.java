@@ -0,0 +1,142 @@
+package de.skillkiller.documentdbackend.service;
+
+import de.skillkiller.documentdbackend.task.OcrWorker;
+import de.skillkiller.documentdbackend.task.PageOcrResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Pool of {@link OcrWorker} processes on the local host. The API JVM only sends the PDF path and page number,
+ * rendering and Tesseract run in the worker. A worker that crashes or exceeds the page timeout is killed and
+ * replaced by a fresh process on next use, the page fails with an {@link IOException}.
+ */
+public class OcrWorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(OcrWorkerPool.class);
+    private static final String SPRING_BOOT_LAUNCHER = "org.springframework.boot.loader.PropertiesLauncher";
+    private final BlockingQueue<WorkerProcess> idleWorkers;
+    private final List<WorkerProcess> allWorkers = new CopyOnWriteArrayList<>();
+    private final ExecutorService responseReaderExecutorService = Executors.newCachedThreadPool();
+    private final List<String> command;
+    private final long pageTimeoutMillis;
+
+    public OcrWorkerPool(int size, String dataPath, String language, String jvmOptions, long pageTimeoutMillis) {
+        this.pageTimeoutMillis = pageTimeoutMillis;
+        this.command = buildCommand(dataPath, language, jvmOptions);
+        this.idleWorkers = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            idleWorkers.add(new WorkerProcess());
+        }
+    }
+
+    private static List<String> buildCommand(String dataPath, String language, String jvmOptions) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (!jvmOptions.isBlank()) command.addAll(Arrays.asList(jvmOptions.trim().split("\\s+")));
+
+        String classPath = System.getProperty("java.class.path");
+        command.add("-cp");
+        command.add(classPath);
+        if (classPath.endsWith(".jar") && !classPath.contains(File.pathSeparator)) {
+            // Packaged application, the worker classes are nested inside the executable jar
+            command.add("-Dloader.main=" + OcrWorker.class.getName());
+            command.add(SPRING_BOOT_LAUNCHER);
+        } else {
+            command.add(OcrWorker.class.getName());
+        }
+        command.add(dataPath);
+        command.add(language);
+        return command;
+    }
+
+    public PageOcrResult ocrPage(File pdfFile, int page, int dpi, boolean gray) throws IOException, InterruptedException {
+        WorkerProcess worker = idleWorkers.take();
+        try {
+            return worker.ocrPage(pdfFile, page, dpi, gray);
+        } finally {
+            idleWorkers.add(worker);
+        }
+    }
+
+    public void close() {
+        allWorkers.forEach(WorkerProcess::stop);
+        responseReaderExecutorService.shutdownNow();
+    }
+
+    private class WorkerProcess {
+        private Process process;
+        private DataOutputStream out;
+        private DataInputStream in;
+
+        private PageOcrResult ocrPage(File pdfFile, int page, int dpi, boolean gray) throws IOException, InterruptedException {
+            if (process == null || !process.isAlive()) start();
+
+            try {
+                out.writeUTF(pdfFile.getAbsolutePath());
+                out.writeInt(page);
+                out.writeInt(dpi);
+                out.writeBoolean(gray);
+                out.flush();
+
+                Future<PageOcrResult> response = responseReaderExecutorService.submit(() -> readResponse(dpi));
+                try {
+                    return response.get(pageTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    response.cancel(true);
+                    throw new IOException("OCR worker exceeded timeout of " + pageTimeoutMillis + " ms for page " + page + " of " + pdfFile.getName());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof OcrWorkerPageException) throw (OcrWorkerPageException) e.getCause();
+                    throw new IOException("OCR worker failed for page " + page + " of " + pdfFile.getName(), e.getCause());
+                }
+            } catch (OcrWorkerPageException e) {
+                throw e; // Worker is still healthy
+            } catch (IOException | InterruptedException e) {
+                stop();
+                throw e;
+            }
+        }
+
+        private PageOcrResult readResponse(int dpi) throws IOException {
+            if (!in.readBoolean()) throw new OcrWorkerPageException(in.readUTF());
+            int confidence = in.readInt();
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            return new PageOcrResult(new String(text, StandardCharsets.UTF_8), confidence, dpi);
+        }
+
+        private void start() throws IOException {
+            stop();
+            process = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+            allWorkers.add(this);
+            logger.info("Started OCR worker process " + process.pid());
+        }
+
+        private void stop() {
+            if (process != null) {
+                logger.info("Stop OCR worker process " + process.pid());
+                process.destroyForcibly();
+                process = null;
+                allWorkers.remove(this);
+            }
+        }
+    }
+
+    // The worker answered with an error for a single page, the process itself is fine
+    private static class OcrWorkerPageException extends IOException {
+        private OcrWorkerPageException(String message) {
+            super(message);
+        }
+    }
+}
@@ -3,16 +3,22 @@ package de.skillkiller.documentdbackend.service;
 import de.skillkiller.documentdbackend.entity.User;
 import de.skillkiller.documentdbackend.entity.UserDetailsHolder;
 import de.skillkiller.documentdbackend.search.UserSearch;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 @Service
 public class UserDetailsService implements org.springframework.security.core.userdetails.UserDetailsService {
 
+    public static final String ADMINISTRATOR_ROLE = "ADMINISTRATOR";
+    private static final List<GrantedAuthority> ADMINISTRATOR_AUTHORITIES = Collections.singletonList(new SimpleGrantedAuthority("ROLE_" + ADMINISTRATOR_ROLE));
+
     private final UserSearch meiliSearch;
 
     public UserDetailsService(UserSearch meiliSearch) {
@@ -24,7 +30,7 @@ public class UserDetailsService implements org.springframework.security.core.use
         Optional<User> optionalUser = meiliSearch.getUserByUsername(s);
 
         if (optionalUser.isPresent()) {
-            return new UserDetailsHolder(optionalUser.get(), Collections.emptyList());
+            return new UserDetailsHolder(optionalUser.get(), getAuthorities(optionalUser.get()));
         } else throw new UsernameNotFoundException("User not found");
     }
 
@@ -32,7 +38,11 @@ public class UserDetailsService implements org.springframework.security.core.use
         Optional<User> optionalUser = meiliSearch.getUserById(userId);
 
         if (optionalUser.isPresent()) {
-            return new UserDetailsHolder(optionalUser.get(), Collections.emptyList());
+            return new UserDetailsHolder(optionalUser.get(), getAuthorities(optionalUser.get()));
         } else throw new UsernameNotFoundException("User not found");
     }
+
+    private static List<GrantedAuthority> getAuthorities(User user) {
+        return user.isAdministrator() ? ADMINISTRATOR_AUTHORITIES : Collections.emptyList();
+    }
 }
@@ -0,0 +1,151 @@
+package de.skillkiller.documentdbackend.service;
+
+import com.google.common.util.concurrent.Striped;
+import de.skillkiller.documentdbackend.entity.Document;
+import de.skillkiller.documentdbackend.entity.User;
+import de.skillkiller.documentdbackend.entity.http.meilisearch.response.SearchResponse;
+import de.skillkiller.documentdbackend.search.DocumentSearch;
+import de.skillkiller.documentdbackend.search.UserSearch;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+/**
+ * Maintains the per-user document counts of companies and categories, which back the autocompletion sets.
+ * Changes of one user are serialized, so concurrent updates and deletes do not lose counts.
+ */
+@Service
+public class UserFacetService {
+
+    private final UserSearch userSearch;
+    private final DocumentSearch documentSearch;
+    private final Striped<Lock> userLocks = Striped.lazyWeakLock(64);
+
+    public UserFacetService(UserSearch userSearch, DocumentSearch documentSearch) {
+        this.userSearch = userSearch;
+        this.documentSearch = documentSearch;
+    }
+
+    /**
+     * Moves the counts of a user from the facets of the old document to those of the new one.
+     * Pass {@code null} as old document for a new document and as new document for a deleted document.
+     * Must be called before the document itself is written.
+     *
+     * @return the user with the updated autocompletion sets, or empty if the user does not exist
+     */
+    public Optional<User> updateFacets(String userId, Document oldDocument, Document newDocument) throws TimeoutException, InterruptedException {
+        return updateFacets(userId, Collections.singletonList(oldDocument), Collections.singletonList(newDocument));
+    }
+
+    /**
+     * Removes the counts of deleted documents of one user with a single user write.
+     */
+    public Optional<User> removeDocuments(String userId, List<Document> deletedDocuments) throws TimeoutException, InterruptedException {
+        return updateFacets(userId, deletedDocuments, Collections.nCopies(deletedDocuments.size(), null));
+    }
+
+    /**
+     * Adds the counts of documents of one user back, for example after removing them failed.
+     */
+    public Optional<User> restoreDocuments(String userId, List<Document> restoredDocuments) throws TimeoutException, InterruptedException {
+        return updateFacets(userId, Collections.nCopies(restoredDocuments.size(), null), restoredDocuments);
+    }
+
+    private Optional<User> updateFacets(String userId, List<Document> oldDocuments, List<Document> newDocuments) throws TimeoutException, InterruptedException {
+        Lock lock = userLocks.get(userId);
+        lock.lockInterruptibly();
+        try {
+            Optional<User> optionalUser = userSearch.getUserById(userId);
+            if (optionalUser.isEmpty()) return optionalUser;
+            User user = optionalUser.get();
+            if (user.getCompanies() == null) user.setCompanies(new HashSet<>());
+            if (user.getCategories() == null) user.setCategories(new HashSet<>());
+            if (user.getCompanyCounts() == null) user.setCompanyCounts(new HashMap<>());
+            if (user.getCategoryCounts() == null) user.setCategoryCounts(new HashMap<>());
+
+            boolean userUpdates = false;
+            for (int i = 0; i < oldDocuments.size(); i++) {
+                Document oldDocument = oldDocuments.get(i);
+                Document newDocument = newDocuments.get(i);
+                String oldCompany = oldDocument == null ? null : oldDocument.getCompany();
+                String newCompany = newDocument == null ? null : newDocument.getCompany();
+                String oldCategory = oldDocument == null ? null : oldDocument.getCategory();
+                String newCategory = newDocument == null ? null : newDocument.getCategory();
+
+                boolean companyChanged = !Objects.equals(oldCompany, newCompany);
+                boolean categoryChanged = !Objects.equals(oldCategory, newCategory);
+
+                // Both lookups of users without counts run at the same time
+                CompletableFuture<Integer> companyLookup = companyChanged ? lookupCount(user.getCompanyCounts(), user.getCompanies(), oldCompany,
+                        company -> documentSearch.getDocumentsWithCompanyFilterInUserScopeAsync(userId, company)) : null;
+                CompletableFuture<Integer> categoryLookup = categoryChanged ? lookupCount(user.getCategoryCounts(), user.getCategories(), oldCategory,
+                        category -> documentSearch.getDocumentsWithCategoryFilterInUserScopeAsync(userId, category)) : null;
+                joinAll(companyLookup, categoryLookup);
+
+                if (companyChanged) {
+                    userUpdates |= decrement(user.getCompanyCounts(), user.getCompanies(), oldCompany, companyLookup);
+                    userUpdates |= increment(user.getCompanyCounts(), user.getCompanies(), newCompany);
+                }
+                if (categoryChanged) {
+                    userUpdates |= decrement(user.getCategoryCounts(), user.getCategories(), oldCategory, categoryLookup);
+                    userUpdates |= increment(user.getCategoryCounts(), user.getCategories(), newCategory);
+                }
+            }
+
+            if (userUpdates) userSearch.createOrReplaceUser(user);
+            return Optional.of(user);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts the documents per user id and facet value, for example {@code Document::getCompany}.
+     */
+    public static Map<String, Map<String, Integer>> countFacet(Collection<Document> documents, Function<Document, String> facet) {
+        Map<String, Map<String, Integer>> counts = new HashMap<>();
+        for (Document document : documents) {
+            String value = facet.apply(document);
+            if (value != null) {
+                counts.computeIfAbsent(document.getUserId(), k -> new HashMap<>()).merge(value, 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    private static boolean increment(Map<String, Integer> counts, Set<String> values, String value) {
+        if (value == null) return false;
+        counts.merge(value, 1, Integer::sum);
+        values.add(value);
+        return true;
+    }
+
+    // Users from before the counts were introduced have the value only in the set until the next rebuild
+    private static CompletableFuture<Integer> lookupCount(Map<String, Integer> counts, Set<String> values, String value,
+                                                          Function<String, CompletableFuture<SearchResponse<Document>>> searchDocuments) {
+        if (value == null || counts.containsKey(value) || !values.contains(value)) return null;
+        return searchDocuments.apply(value).thenApply(SearchResponse::getNbHits);
+    }
+
+    private static void joinAll(CompletableFuture<?>... lookups) {
+        CompletableFuture.allOf(Arrays.stream(lookups).filter(Objects::nonNull).toArray(CompletableFuture[]::new)).join();
+    }
+
+    private static boolean decrement(Map<String, Integer> counts, Set<String> values, String value, CompletableFuture<Integer> countLookup) {
+        if (value == null) return false;
+        Integer count = counts.get(value);
+        if (count == null) count = countLookup != null ? countLookup.join() : 1;
+
+        if (count <= 1) {
+            counts.remove(value);
+            values.remove(value);
+        } else {
+            counts.put(value, count - 1);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,53 @@
+package de.skillkiller.documentdbackend.storage;
+
+import org.springframework.core.io.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Storage of the document files. Files are addressed by key, {@code userId/filename}.
+ * Uploads are first staged in a local file, because hashing and text extraction need a file anyway, and then
+ * handed over to the store with {@link #put(String, File)}. The store is selected with {@code file.store}.
+ */
+public interface DocumentStore {
+
+    String PARTIAL_FILE_SUFFIX = ".part";
+
+    /**
+     * Local directory for partial uploads of a user, preferably on the same volume as the stored files.
+     */
+    File getStagingDirectory(String userId) throws IOException;
+
+    /**
+     * Moves the staged file into the store. The staged file is gone afterwards.
+     */
+    void put(String key, File stagedFile) throws IOException;
+
+    boolean exists(String key);
+
+    /**
+     * Streaming access to the stored file, the resource also reports size and modification time.
+     */
+    Resource getResource(String key);
+
+    /**
+     * Local file with the content, for libraries which need random access like the OCR.
+     * Close it after use, temporary copies are deleted then.
+     */
+    MaterializedFile materialize(String key) throws IOException;
+
+    boolean delete(String key);
+
+    /**
+     * All stored keys without partial uploads. The stream must be closed.
+     */
+    Stream<String> listKeys() throws IOException;
+
+    /**
+     * All partial files in the staging directories. The stream must be closed.
+     */
+    Stream<Path> listPartialFiles() throws IOException;
+}
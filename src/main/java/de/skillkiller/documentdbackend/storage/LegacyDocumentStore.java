@@ -0,0 +1,54 @@
+package de.skillkiller.documentdbackend.storage;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+/**
+ * One directory per user below {@code file.basepath}, the layout of all existing installations.
+ */
+@Component
+@ConditionalOnProperty(name = "file.store", havingValue = "legacy", matchIfMissing = true)
+public class LegacyDocumentStore extends LocalDocumentStore {
+
+    private final Path baseDir;
+
+    public LegacyDocumentStore(@Value("${file.basepath}") String baseDir) {
+        this.baseDir = Paths.get(baseDir);
+    }
+
+    @Override
+    protected Path resolve(String key) {
+        return baseDir.resolve(key);
+    }
+
+    // Partial uploads live in the user directory, so storing them is a rename
+    @Override
+    public File getStagingDirectory(String userId) throws IOException {
+        return Files.createDirectories(baseDir.resolve(userId)).toFile();
+    }
+
+    @Override
+    public Stream<Path> listPartialFiles() throws IOException {
+        if (!Files.isDirectory(baseDir)) return Stream.empty();
+        return Files.walk(baseDir)
+                .filter(Files::isRegularFile)
+                .filter(path -> path.getFileName().toString().endsWith(PARTIAL_FILE_SUFFIX));
+    }
+
+    @Override
+    public Stream<String> listKeys() throws IOException {
+        if (!Files.isDirectory(baseDir)) return Stream.empty();
+        return Files.walk(baseDir)
+                .filter(Files::isRegularFile)
+                .filter(path -> !path.getFileName().toString().endsWith(PARTIAL_FILE_SUFFIX))
+                .map(path -> toKey(baseDir.relativize(path)));
+    }
+}
@@ -0,0 +1,89 @@
+package de.skillkiller.documentdbackend.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * The layout of {@link LegacyDocumentStore}, {@code file.basepath/userId/filename}. The other stores still read and
+ * list files in it after switching {@code file.store}, until they are moved over with {@code file.migrate}.
+ */
+final class LegacyLayout {
+
+    private static final Logger logger = LoggerFactory.getLogger(LegacyLayout.class);
+    private final Path baseDir;
+
+    LegacyLayout(Path baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    Optional<Path> find(String key) {
+        Path path = baseDir.resolve(key);
+        return Files.isRegularFile(path) ? Optional.of(path) : Optional.empty();
+    }
+
+    boolean delete(String key) {
+        try {
+            return Files.deleteIfExists(baseDir.resolve(key));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Keys of the files directly in the user directories. Deeper files belong to a sharded store on the same volume,
+     * directories starting with a dot are staging directories.
+     */
+    Stream<String> listKeys() throws IOException {
+        if (!Files.isDirectory(baseDir)) return Stream.empty();
+        return Files.walk(baseDir, 2)
+                .filter(Files::isRegularFile)
+                .map(baseDir::relativize)
+                .filter(path -> path.getNameCount() == 2 && !path.getName(0).toString().startsWith("."))
+                .filter(path -> !path.getFileName().toString().endsWith(DocumentStore.PARTIAL_FILE_SUFFIX))
+                .map(LocalDocumentStore::toKey);
+    }
+
+    /**
+     * Moves all files of the legacy layout into the store. A file which cannot be moved stays readable where it is.
+     */
+    void migrateTo(DocumentStore documentStore) {
+        int migrated = 0;
+        int failed = 0;
+        logger.info("Migrate document files from " + baseDir + " into " + documentStore.getClass().getSimpleName());
+        try (Stream<String> keys = listKeys()) {
+            for (Iterator<String> iterator = keys.iterator(); iterator.hasNext(); ) {
+                String key = iterator.next();
+                Path path = baseDir.resolve(key);
+                try {
+                    documentStore.put(key, path.toFile());
+                    migrated++;
+                    deleteIfEmpty(path.getParent());
+                } catch (IOException e) {
+                    logger.error("Migration of " + key + " failed", e);
+                    failed++;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Listing of " + baseDir + " failed, migration stopped", e);
+        }
+        logger.info("Migrated " + migrated + " document files, " + failed + " failed");
+    }
+
+    private static void deleteIfEmpty(Path directory) {
+        try {
+            Files.deleteIfExists(directory);
+        } catch (DirectoryNotEmptyException e) {
+            // More files of the user follow
+        } catch (IOException e) {
+            logger.warn("Delete of directory " + directory + " failed", e);
+        }
+    }
+}
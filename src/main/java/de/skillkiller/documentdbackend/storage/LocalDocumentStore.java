@@ -0,0 +1,66 @@
+package de.skillkiller.documentdbackend.storage;
+
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Base of the stores on local volumes, which only differ in the path of a key.
+ */
+abstract class LocalDocumentStore implements DocumentStore {
+
+    protected abstract Path resolve(String key);
+
+    /**
+     * Path to read an existing file from, which is {@link #resolve(String)} unless files can be elsewhere.
+     */
+    protected Path locate(String key) {
+        return resolve(key);
+    }
+
+    @Override
+    public void put(String key, File stagedFile) throws IOException {
+        Path target = resolve(key);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(stagedFile.toPath(), target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // Staging directory is on another volume, copy and delete instead of renaming
+            Files.move(stagedFile.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return Files.isRegularFile(locate(key));
+    }
+
+    @Override
+    public Resource getResource(String key) {
+        return new FileSystemResource(locate(key));
+    }
+
+    @Override
+    public MaterializedFile materialize(String key) {
+        return new MaterializedFile(locate(key).toFile(), false);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        try {
+            return Files.deleteIfExists(locate(key));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    protected static String toKey(Path relativePath) {
+        return relativePath.toString().replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,27 @@
+package de.skillkiller.documentdbackend.storage;
+
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A stored file on the local disk, either the stored file itself or a temporary copy.
+ */
+public class MaterializedFile implements AutoCloseable {
+
+    @Getter
+    private final File file;
+    private final boolean temporary;
+
+    MaterializedFile(File file, boolean temporary) {
+        this.file = file;
+        this.temporary = temporary;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (temporary) Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,293 @@
+package de.skillkiller.documentdbackend.storage;
+
+import io.minio.*;
+import io.minio.errors.ErrorResponseException;
+import io.minio.errors.MinioException;
+import io.minio.messages.Item;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Stores the files as objects of an S3-compatible object storage like MinIO, the key is the object name.
+ * Uploads are staged below {@code file.basepath} and uploaded from there. Files of the legacy layout below
+ * {@code file.basepath} are still served, with {@code file.migrate} they are uploaded at startup.
+ */
+@Component
+@ConditionalOnProperty(name = "file.store", havingValue = "s3")
+public class S3DocumentStore implements DocumentStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(S3DocumentStore.class);
+    private final MinioClient minioClient;
+    private final String bucket;
+    private final Path stagingDir;
+    private final LegacyLayout legacyLayout;
+    private final boolean migrate;
+
+    public S3DocumentStore(@Value("${file.s3.endpoint}") String endpoint,
+                           @Value("${file.s3.accesskey}") String accessKey,
+                           @Value("${file.s3.secretkey}") String secretKey,
+                           @Value("${file.s3.bucket:documentd}") String bucket,
+                           @Value("${file.basepath}") String baseDir,
+                           @Value("${file.migrate:false}") boolean migrate) throws IOException {
+        this.minioClient = MinioClient.builder()
+                .endpoint(endpoint)
+                .credentials(accessKey, secretKey)
+                .build();
+        this.bucket = bucket;
+        this.stagingDir = Paths.get(baseDir, ".staging");
+        this.legacyLayout = new LegacyLayout(Paths.get(baseDir));
+        this.migrate = migrate;
+
+        try {
+            if (!minioClient.bucketExists(BucketExistsArgs.builder().bucket(bucket).build())) {
+                minioClient.makeBucket(MakeBucketArgs.builder().bucket(bucket).build());
+                logger.info("Created bucket " + bucket);
+            }
+        } catch (MinioException | GeneralSecurityException e) {
+            throw new IOException("Cannot access bucket " + bucket, e);
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateLegacyFiles() {
+        if (migrate) legacyLayout.migrateTo(this);
+    }
+
+    @Override
+    public File getStagingDirectory(String userId) throws IOException {
+        return Files.createDirectories(stagingDir).toFile();
+    }
+
+    @Override
+    public void put(String key, File stagedFile) throws IOException {
+        try {
+            minioClient.uploadObject(UploadObjectArgs.builder()
+                    .bucket(bucket)
+                    .object(key)
+                    .filename(stagedFile.getAbsolutePath())
+                    .contentType("application/pdf")
+                    .build());
+        } catch (MinioException | GeneralSecurityException e) {
+            throw new IOException("Upload of " + key + " failed", e);
+        }
+        Files.delete(stagedFile.toPath());
+    }
+
+    @Override
+    public boolean exists(String key) {
+        if (legacyLayout.find(key).isPresent()) return true;
+        try {
+            return stat(key) != null;
+        } catch (IOException e) {
+            logger.error("Cannot check object " + key, e);
+            return false;
+        }
+    }
+
+    @Override
+    public Resource getResource(String key) {
+        // Checking the local disk first saves a request for files which were not migrated
+        Optional<Path> legacyFile = legacyLayout.find(key);
+        if (legacyFile.isPresent()) return new FileSystemResource(legacyFile.get());
+        return new ObjectResource(key);
+    }
+
+    @Override
+    public MaterializedFile materialize(String key) throws IOException {
+        Optional<Path> legacyFile = legacyLayout.find(key);
+        if (legacyFile.isPresent()) return new MaterializedFile(legacyFile.get().toFile(), false);
+        Path temporaryFile = Files.createTempFile(Files.createDirectories(stagingDir), "materialized", PARTIAL_FILE_SUFFIX);
+        try (InputStream inputStream = getObject(key, 0)) {
+            Files.copy(inputStream, temporaryFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+        return new MaterializedFile(temporaryFile.toFile(), true);
+    }
+
+    @Override
+    public boolean delete(String key) {
+        if (legacyLayout.delete(key)) return true;
+        try {
+            minioClient.removeObject(RemoveObjectArgs.builder().bucket(bucket).object(key).build());
+            return true;
+        } catch (MinioException | GeneralSecurityException | IOException e) {
+            logger.error("Delete of object " + key + " failed", e);
+            return false;
+        }
+    }
+
+    @Override
+    public Stream<String> listKeys() throws IOException {
+        Iterable<Result<Item>> results = minioClient.listObjects(ListObjectsArgs.builder().bucket(bucket).recursive(true).build());
+        Stream<String> objectKeys = StreamSupport.stream(results.spliterator(), false)
+                .map(result -> {
+                    try {
+                        return result.get().objectName();
+                    } catch (MinioException | GeneralSecurityException e) {
+                        throw new UncheckedIOException(new IOException("Listing of bucket " + bucket + " failed", e));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        return Stream.concat(objectKeys, legacyLayout.listKeys());
+    }
+
+    @Override
+    public Stream<Path> listPartialFiles() throws IOException {
+        if (!Files.isDirectory(stagingDir)) return Stream.empty();
+        return Files.list(stagingDir)
+                .filter(path -> path.getFileName().toString().endsWith(PARTIAL_FILE_SUFFIX));
+    }
+
+    private InputStream getObject(String key, long offset) throws IOException {
+        try {
+            GetObjectArgs.Builder args = GetObjectArgs.builder().bucket(bucket).object(key);
+            if (offset > 0) args.offset(offset);
+            return minioClient.getObject(args.build());
+        } catch (MinioException | GeneralSecurityException e) {
+            throw new IOException("Download of " + key + " failed", e);
+        }
+    }
+
+    // Returns null if the object does not exist
+    private StatObjectResponse stat(String key) throws IOException {
+        try {
+            return minioClient.statObject(StatObjectArgs.builder().bucket(bucket).object(key).build());
+        } catch (ErrorResponseException e) {
+            if ("NoSuchKey".equals(e.errorResponse().code())) return null;
+            throw new IOException("Stat of " + key + " failed", e);
+        } catch (MinioException | GeneralSecurityException e) {
+            throw new IOException("Stat of " + key + " failed", e);
+        }
+    }
+
+    /**
+     * Streams the object. Size and modification time come from one stat request. Range responses skip to the start
+     * of the range first, which becomes the offset of the download instead of reading the skipped bytes.
+     */
+    private class ObjectResource extends AbstractResource {
+        private final String key;
+        private StatObjectResponse stat;
+
+        private ObjectResource(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getDescription() {
+            return "S3 object [" + bucket + "/" + key + "]";
+        }
+
+        @Override
+        public String getFilename() {
+            return key.substring(key.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public boolean exists() {
+            try {
+                return getStat() != null;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ObjectInputStream(key);
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return requireStat().size();
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            return requireStat().lastModified().toInstant().toEpochMilli();
+        }
+
+        private StatObjectResponse getStat() throws IOException {
+            if (stat == null) stat = stat(key);
+            return stat;
+        }
+
+        private StatObjectResponse requireStat() throws IOException {
+            StatObjectResponse objectStat = getStat();
+            if (objectStat == null) throw new IOException(getDescription() + " does not exist");
+            return objectStat;
+        }
+    }
+
+    /**
+     * Opens the download on the first read, at the position skipped to until then.
+     */
+    private class ObjectInputStream extends InputStream {
+        private final String key;
+        private long position = 0;
+        private InputStream download;
+
+        private ObjectInputStream(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = open().read();
+            if (b >= 0) position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = open().read(b, off, len);
+            if (read > 0) position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) return 0;
+            if (download != null) {
+                long skipped = download.skip(n);
+                position += skipped;
+                return skipped;
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (download != null) download.close();
+        }
+
+        private InputStream open() throws IOException {
+            if (download == null) download = getObject(key, position);
+            return download;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package de.skillkiller.documentdbackend.storage;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Spreads the files over the volumes of {@code file.volumes} by the hash of their key, with two levels of hash
+ * fanout below each volume: {@code volume/ab/cd/userId/filename}. No directory grows with the number of documents
+ * of one user. The hash decides the volume, so the list of volumes must not change once files are stored.
+ * Files of the legacy layout below {@code file.basepath} are still found, with {@code file.migrate} they are moved
+ * over at startup.
+ */
+@Component
+@ConditionalOnProperty(name = "file.store", havingValue = "sharded")
+public class ShardedDocumentStore extends LocalDocumentStore {
+
+    private static final String STAGING_DIRECTORY = ".staging";
+    private final List<Path> volumes = new ArrayList<>();
+    private final LegacyLayout legacyLayout;
+    private final boolean migrate;
+
+    public ShardedDocumentStore(@Value("${file.volumes:${file.basepath}}") String[] volumes,
+                                @Value("${file.basepath}") String legacyBaseDir,
+                                @Value("${file.migrate:false}") boolean migrate) {
+        this.legacyLayout = new LegacyLayout(Paths.get(legacyBaseDir));
+        this.migrate = migrate;
+        for (String volume : volumes) {
+            if (!volume.isBlank()) this.volumes.add(Paths.get(volume.trim()));
+        }
+        if (this.volumes.isEmpty()) throw new IllegalStateException("file.volumes must contain at least one volume");
+    }
+
+    @Override
+    protected Path resolve(String key) {
+        HashCode hash = hash(key);
+        String hex = hash.toString();
+        return volumeOf(hash).resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4)).resolve(key);
+    }
+
+    @Override
+    protected Path locate(String key) {
+        Path path = resolve(key);
+        if (Files.isRegularFile(path)) return path;
+        return legacyLayout.find(key).orElse(path);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateLegacyFiles() {
+        if (migrate) legacyLayout.migrateTo(this);
+    }
+
+    // Files of a user are spread over all volumes, the staging volume is only right for some of them
+    @Override
+    public File getStagingDirectory(String userId) throws IOException {
+        return Files.createDirectories(volumeOf(hash(userId)).resolve(STAGING_DIRECTORY)).toFile();
+    }
+
+    @Override
+    public Stream<String> listKeys() throws IOException {
+        return Stream.concat(listShardedKeys(), legacyLayout.listKeys());
+    }
+
+    private Stream<String> listShardedKeys() {
+        return volumes.stream()
+                .filter(Files::isDirectory)
+                .flatMap(volume -> {
+                    try {
+                        return Files.walk(volume)
+                                .filter(Files::isRegularFile)
+                                .map(volume::relativize)
+                                // Skips the staging directory and foreign files, keys are below the two fanout levels
+                                .filter(path -> path.getNameCount() > 3 && !path.getName(0).toString().equals(STAGING_DIRECTORY))
+                                .map(path -> toKey(path.subpath(2, path.getNameCount())));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    // The fanout directories use the first two bytes of the hash, the volume is chosen by later ones
+    @Override
+    public Stream<Path> listPartialFiles() {
+        return volumes.stream()
+                .map(volume -> volume.resolve(STAGING_DIRECTORY))
+                .filter(Files::isDirectory)
+                .flatMap(stagingDir -> {
+                    try {
+                        return Files.list(stagingDir)
+                                .filter(path -> path.getFileName().toString().endsWith(PARTIAL_FILE_SUFFIX));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private Path volumeOf(HashCode hash) {
+        return volumes.get(Math.floorMod((int) (hash.asLong() >>> 32), volumes.size()));
+    }
+
+    private static HashCode hash(String value) {
+        return Hashing.sha256().hashString(value, StandardCharsets.UTF_8);
+    }
+}
@@ -1,32 +1,24 @@
 package de.skillkiller.documentdbackend.task;
 
-import de.skillkiller.documentdbackend.controller.DocumentController;
+import com.google.common.collect.Lists;
 import de.skillkiller.documentdbackend.entity.Document;
 import de.skillkiller.documentdbackend.entity.User;
 import de.skillkiller.documentdbackend.search.DocumentSearch;
 import de.skillkiller.documentdbackend.search.UserSearch;
 import de.skillkiller.documentdbackend.service.DatabaseLockService;
-import de.skillkiller.documentdbackend.service.UserDetailsService;
+import de.skillkiller.documentdbackend.service.UserFacetService;
 import de.skillkiller.documentdbackend.util.FileUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.userdetails.UserDetails;
-import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Component;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.io.UncheckedIOException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -34,20 +26,22 @@ import java.util.stream.Stream;
 public class DeleteOldEntries {
 
     private static final Logger logger = LoggerFactory.getLogger(DeleteOldEntries.class);
+    private static final int BATCH_SIZE = 1000;
     private final DocumentSearch documentSearch;
-    private final DocumentController documentController;
     private final UserSearch userSearch;
-    private final UserDetailsService userDetailsService;
+    private final UserFacetService userFacetService;
     private final DatabaseLockService databaseLockService;
     private final FileUtil fileUtil;
+    private final double maxMissingRatio;
 
-    public DeleteOldEntries(DocumentSearch documentSearch, DocumentController documentController, UserSearch userSearch, UserDetailsService userDetailsService, DatabaseLockService databaseLockService, FileUtil fileUtil) {
+    public DeleteOldEntries(DocumentSearch documentSearch, UserSearch userSearch, UserFacetService userFacetService, DatabaseLockService databaseLockService, FileUtil fileUtil,
+                            @Value("${file.check.maxmissing:0.5}") double maxMissingRatio) {
         this.documentSearch = documentSearch;
-        this.documentController = documentController;
         this.userSearch = userSearch;
-        this.userDetailsService = userDetailsService;
+        this.userFacetService = userFacetService;
         this.databaseLockService = databaseLockService;
         this.fileUtil = fileUtil;
+        this.maxMissingRatio = maxMissingRatio;
     }
 
 
@@ -55,7 +49,7 @@ public class DeleteOldEntries {
     public void getAllData() {
         HashMap<String, User> users = new LinkedHashMap<>();
         List<Document> documents = new LinkedList<>();
-        List<File> checkedFiles = new ArrayList<>();
+        Set<String> checkedKeys = new HashSet<>();
 
         databaseLockService.lockNewWriteOperations();
 
@@ -95,6 +89,7 @@ public class DeleteOldEntries {
                     users.put(user.getId(), user);
                 }
             } while (getUser.size() == limit);
+            userSearch.rebuildLookupIndex(new ArrayList<>(users.values()));
 
             List<Document> getDocument;
             offset = 0;
@@ -112,83 +107,75 @@ public class DeleteOldEntries {
             return;
         }
 
-        List<Document> documentsToDelete = new ArrayList<>();
-        // Check all documents for file and user
-        for (Document document : documents) {
-            File file = fileUtil.getFile(document);
-            boolean needDelete = false;
-            if (file.exists()) {
-                if (file.isFile()) {
+        // Listing the store once is much cheaper than checking every document, especially for object storage
+        Set<String> storedKeys = null;
+        try (Stream<String> keys = fileUtil.listKeys()) {
+            storedKeys = keys.collect(Collectors.toCollection(HashSet::new));
+        } catch (IOException | UncheckedIOException e) {
+            logger.error("IO Exception on listing stored document files, skip the file check", e);
+        }
+
+        // A wrong file.store or file.basepath looks like lost files, that must not wipe the index or the store
+        if (storedKeys != null) {
+            Set<String> keys = storedKeys;
+            Set<String> documentKeys = documents.stream().map(fileUtil::getKey).collect(Collectors.toSet());
+            long missingFiles = documentKeys.stream().filter(key -> !keys.contains(key)).count();
+            long unknownFiles = storedKeys.stream().filter(key -> !documentKeys.contains(key)).count();
+            if (missingFiles > documentKeys.size() * maxMissingRatio || unknownFiles > storedKeys.size() * maxMissingRatio) {
+                logger.error(missingFiles + " of " + documentKeys.size() + " documents have no stored file and " + unknownFiles + " of "
+                        + storedKeys.size() + " stored files have no document, skip the file check. Check file.store and file.basepath");
+                storedKeys = null;
+            }
+        }
+
+        if (storedKeys != null) {
+            List<Document> documentsToDelete = new ArrayList<>();
+            // Check all documents for file and user
+            for (Document document : documents) {
+                String key = fileUtil.getKey(document);
+                boolean needDelete = false;
+                if (storedKeys.contains(key)) {
                     if (users.containsKey(document.getUserId())) {
-                        checkedFiles.add(file);
+                        checkedKeys.add(key);
                     } else {
                         needDelete = true;
                         logger.warn("Document" + document.getId() + " exists but user does not");
                     }
                 } else {
                     needDelete = true;
-                    logger.warn("Document " + document.getId() + " linked file is not a file");
+                    logger.warn("Document " + document.getId() + " has no stored file");
                 }
-            } else {
-                needDelete = true;
-                logger.warn("Document " + document.getId() + " has no file on disk");
-            }
 
-            if (needDelete) {
-                documentsToDelete.add(document);
-                documentSearch.deleteDocumentBypassWriteLock(document.getId());
-            }
-        }
-
-        documents.removeAll(documentsToDelete);
-        documentsToDelete.clear();
-
-        if (new File(fileUtil.getBASE_DIR()).isDirectory()) {
-            Path start = Paths.get(fileUtil.getBASE_DIR());
-            try (Stream<Path> stream = Files.walk(start, Integer.MAX_VALUE)) {
-                List<File> collect = stream
-                        .map(Path::toFile)
-                        .filter(File::isFile)
-                        .filter(Predicate.not(checkedFiles::contains))
-                        .collect(Collectors.toList());
-
-                collect.forEach(file -> {
-                    logger.error(file.getName() + " has no Database Entry!");
-                    if (file.delete()) {
-                        logger.warn("Delete file " + file.getAbsolutePath());
-                    }
-                });
-
-            } catch (IOException e) {
-                logger.error("IO Exception on scan documents files on disk", e);
+                if (needDelete) {
+                    documentsToDelete.add(document);
+                    documentSearch.deleteDocumentBypassWriteLock(document);
+                }
             }
-        }
 
-        HashMap<String, Set<String>> userCompanies = new HashMap<>();
-        HashMap<String, Set<String>> userCategories = new HashMap<>();
+            documents.removeAll(documentsToDelete);
 
-        for (Document document : documents) {
-            if (document.getCompany() != null) {
-                Set<String> companies;
-                if (userCompanies.containsKey(document.getUserId())) {
-                    companies = userCompanies.get(document.getUserId());
-                } else {
-                    companies = new HashSet<>();
-                    userCompanies.put(document.getUserId(), companies);
+            storedKeys.removeAll(checkedKeys);
+            for (String key : storedKeys) {
+                logger.error(key + " has no Database Entry!");
+                if (fileUtil.delete(key)) {
+                    logger.warn("Delete file " + key);
                 }
-
-                companies.add(document.getCompany());
             }
+        }
 
-            if (document.getCategory() != null) {
-                Set<String> categories;
-                if (userCategories.containsKey(document.getUserId())) {
-                    categories = userCategories.get(document.getUserId());
-                } else {
-                    categories = new HashSet<>();
-                    userCategories.put(document.getUserId(), categories);
+        Map<String, Map<String, Integer>> userCompanyCounts = UserFacetService.countFacet(documents, Document::getCompany);
+        Map<String, Map<String, Integer>> userCategoryCounts = UserFacetService.countFacet(documents, Document::getCategory);
+
+        // Documents indexed before the date timestamps existed are not found by range filters
+        List<Document> documentsWithoutTimestamps = documents.stream()
+                .filter(Document::needsDateTimestampBackfill)
+                .collect(Collectors.toList());
+        if (!documentsWithoutTimestamps.isEmpty()) {
+            logger.info("Add date timestamps to " + documentsWithoutTimestamps.size() + " documents");
+            for (List<Document> batch : Lists.partition(documentsWithoutTimestamps, BATCH_SIZE)) {
+                if (!documentSearch.createOrReplaceDocumentsBypassWriteLock(batch)) {
+                    logger.error("Add date timestamps to " + batch.size() + " documents failed!");
                 }
-                categories.add(document.getCategory());
             }
         }
 
@@ -196,25 +183,27 @@ public class DeleteOldEntries {
         for (Map.Entry<String, User> userEntry : users.entrySet()) {
             boolean updateUser = false;
             User user = userEntry.getValue();
-            Set<String> calculatedCompanies = userCompanies.getOrDefault(user.getId(), new HashSet<>());
+            Map<String, Integer> calculatedCompanyCounts = userCompanyCounts.getOrDefault(user.getId(), new HashMap<>());
 
-            if (!user.getCompanies().equals(calculatedCompanies)) {
+            if (!calculatedCompanyCounts.equals(user.getCompanyCounts()) || !calculatedCompanyCounts.keySet().equals(user.getCompanies())) {
                 logger.warn("Find difference in user companies");
                 logger.debug("UserId: " + user.getId());
-                logger.debug("User categories: " + user.getCompanies().toString());
-                logger.debug("Calculated categories: " + calculatedCompanies.toString());
-                user.setCompanies(calculatedCompanies);
+                logger.debug("User companies: " + user.getCompanyCounts());
+                logger.debug("Calculated companies: " + calculatedCompanyCounts.toString());
+                user.setCompanyCounts(calculatedCompanyCounts);
+                user.setCompanies(new HashSet<>(calculatedCompanyCounts.keySet()));
                 updateUser = true;
             }
 
-            Set<String> calculatedCategories = userCategories.getOrDefault(user.getId(), new HashSet<>());
+            Map<String, Integer> calculatedCategoryCounts = userCategoryCounts.getOrDefault(user.getId(), new HashMap<>());
 
-            if (!user.getCategories().equals(calculatedCategories)) {
+            if (!calculatedCategoryCounts.equals(user.getCategoryCounts()) || !calculatedCategoryCounts.keySet().equals(user.getCategories())) {
                 logger.warn("Find difference in user categories");
                 logger.debug("UserId: " + user.getId());
-                logger.debug("User categories: " + user.getCategories().toString());
-                logger.debug("Calculated categories: " + calculatedCategories.toString());
-                user.setCategories(calculatedCategories);
+                logger.debug("User categories: " + user.getCategoryCounts());
+                logger.debug("Calculated categories: " + calculatedCategoryCounts.toString());
+                user.setCategoryCounts(calculatedCategoryCounts);
+                user.setCategories(new HashSet<>(calculatedCategoryCounts.keySet()));
                 updateUser = true;
             }
 
@@ -232,39 +221,54 @@ public class DeleteOldEntries {
     @Scheduled(fixedRate = 6 * 60 * 60 * 1000, initialDelay = 60 * 1000)
     public void deleteOldDocumentEntries() {
         logger.info("Search for Documents to delete");
+        long start = System.currentTimeMillis();
         int deleteCounter = 0;
 
-        Instant now = Instant.now();
+        Map<String, List<Document>> documentsByUser = documentSearch.getDocumentsToDelete(new Date()).stream()
+                .collect(Collectors.groupingBy(Document::getUserId));
 
-        List<Date> dateList = new ArrayList<>();
-        for (int i = 0; i < 7; i++) {
-            dateList.add(Date.from(now.minus(i, ChronoUnit.DAYS)));
+        for (Map.Entry<String, List<Document>> userDocuments : documentsByUser.entrySet()) {
+            try {
+                deleteCounter += deleteDocumentsOfUser(userDocuments.getKey(), userDocuments.getValue());
+            } catch (TimeoutException | InterruptedException e) {
+                logger.error("Ran in timeout during delete old documents of user " + userDocuments.getKey(), e);
+                break;
+            }
         }
 
-        HashMap<String, UserDetails> userHashMap = new HashMap<>();
-
-        List<Document> documentList = documentSearch.getDocumentsWithDeleteFilter(dateList);
-        for (Document document : documentList) {
-            UserDetails userDetails;
-            if (userHashMap.containsKey(document.getUserId())) {
-                userDetails = userHashMap.get(document.getUserId());
-            } else {
-                try {
-                    userDetails = this.userDetailsService.loadUserById(document.getUserId());
-                    userHashMap.put(document.getUserId(), userDetails);
-                } catch (UsernameNotFoundException e) {
-                    logger.error("Cannot delete document " + document.getId() + " because user " + document.getUserId() + " not exists!");
-                    continue;
+        long duration = Math.max(System.currentTimeMillis() - start, 1);
+        logger.info("Finished delete " + deleteCounter + " old documents of " + documentsByUser.size() + " users in " + duration + " ms ("
+                + (deleteCounter * 1000L / duration) + " documents/s)");
+    }
+
+    private int deleteDocumentsOfUser(String userId, List<Document> documents) throws TimeoutException, InterruptedException {
+        int deleteCounter = 0;
+        for (List<Document> batch : Lists.partition(documents, BATCH_SIZE)) {
+            // One user write per batch, counts are taken before the documents are gone
+            if (userFacetService.removeDocuments(userId, batch).isEmpty()) {
+                logger.error("Cannot delete " + documents.size() + " documents because user " + userId + " not exists!");
+                return deleteCounter;
+            }
+
+            boolean deleted = false;
+            try {
+                deleted = documentSearch.deleteDocuments(batch);
+            } finally {
+                // The documents are still indexed, so their counts must be too
+                if (!deleted) {
+                    logger.error("Delete of " + batch.size() + " old documents of user " + userId + " failed!");
+                    userFacetService.restoreDocuments(userId, batch);
                 }
             }
+            if (!deleted) continue;
 
-            UsernamePasswordAuthenticationToken usernamePasswordAuthenticationToken = new UsernamePasswordAuthenticationToken(
-                    userDetails, null, userDetails.getAuthorities()
-            );
-            documentController.deleteDocument(usernamePasswordAuthenticationToken, document.getId());
-            deleteCounter++;
+            for (Document document : batch) {
+                if (!fileUtil.delete(document)) {
+                    logger.warn("Delete from document file " + document.getId() + " failed!");
+                }
+            }
+            deleteCounter += batch.size();
         }
-
-        logger.info("Finished delete " + deleteCounter + " old documents");
+        return deleteCounter;
     }
 }
@@ -0,0 +1,92 @@
+package de.skillkiller.documentdbackend.task;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Entry point of an OCR worker process started by {@link de.skillkiller.documentdbackend.service.OcrWorkerPool}.
+ * Reads page requests from stdin and answers each with the recognised text on stdout, one at a time.
+ * <p>
+ * Request: path (UTF), page index (int), DPI (int), grayscale (boolean)<br>
+ * Response: success (boolean), then either confidence (int), text length (int) and UTF-8 text bytes,
+ * or an error message (UTF)
+ */
+public class OcrWorker {
+
+    private final PooledTesseract tesseract;
+    private String openPath;
+    private PDDocument openDocument;
+    private PDFRenderer pdfRenderer;
+
+    private OcrWorker(String dataPath, String language) {
+        this.tesseract = new PooledTesseract(dataPath, language);
+    }
+
+    public static void main(String[] args) throws IOException {
+        // stdout belongs to the protocol, everything else that gets printed goes to stderr
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+
+        OcrWorker ocrWorker = new OcrWorker(args[0], args[1]);
+        try {
+            while (true) {
+                String path;
+                try {
+                    path = in.readUTF();
+                } catch (EOFException e) {
+                    return; // Pool closed the pipe
+                }
+                int page = in.readInt();
+                int dpi = in.readInt();
+                boolean gray = in.readBoolean();
+
+                try {
+                    PageOcrResult result = ocrWorker.ocr(path, page, dpi, gray);
+                    byte[] text = result.getText().getBytes(StandardCharsets.UTF_8);
+                    out.writeBoolean(true);
+                    out.writeInt(result.getMeanConfidence());
+                    out.writeInt(text.length);
+                    out.write(text);
+                } catch (IOException | RuntimeException e) {
+                    String message = String.valueOf(e.getMessage());
+                    out.writeBoolean(false);
+                    out.writeUTF(message.length() > 1000 ? message.substring(0, 1000) : message);
+                }
+                out.flush();
+            }
+        } finally {
+            ocrWorker.close();
+        }
+    }
+
+    private PageOcrResult ocr(String path, int page, int dpi, boolean gray) throws IOException {
+        // Pages of one document usually arrive one after another, keep it open between them
+        if (!path.equals(openPath)) {
+            closeDocument();
+            openDocument = PDDocument.load(new File(path), MemoryUsageSetting.setupTempFileOnly());
+            pdfRenderer = new PDFRenderer(openDocument);
+            openPath = path;
+        }
+        return tesseract.ocr(pdfRenderer.renderImageWithDPI(page, dpi, gray ? ImageType.GRAY : ImageType.RGB), dpi);
+    }
+
+    private void closeDocument() throws IOException {
+        if (openDocument != null) {
+            openDocument.close();
+            openDocument = null;
+            pdfRenderer = null;
+            openPath = null;
+        }
+    }
+
+    private void close() throws IOException {
+        closeDocument();
+        tesseract.close();
+    }
+}
@@ -2,81 +2,68 @@ package de.skillkiller.documentdbackend.task;
 
 import de.skillkiller.documentdbackend.entity.Document;
 import de.skillkiller.documentdbackend.search.DocumentSearch;
+import de.skillkiller.documentdbackend.service.OcrService;
+import de.skillkiller.documentdbackend.storage.MaterializedFile;
 import de.skillkiller.documentdbackend.util.FileUtil;
-import net.sourceforge.tess4j.Tesseract;
-import net.sourceforge.tess4j.TesseractException;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.rendering.PDFRenderer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.util.Optional;
 import java.util.concurrent.TimeoutException;
 
 
-public class PDFOCR implements Runnable {
+public class PDFOCR {
 
     private static final Logger logger = LoggerFactory.getLogger(PDFOCR.class);
     private final Document document;
     private final DocumentSearch documentSearch;
     private final FileUtil fileUtil;
-    private final String dataPath;
-    private final String language;
+    private final OcrService ocrService;
 
-    public PDFOCR(Document document, DocumentSearch documentSearch, FileUtil fileUtil, String dataPath, String language) {
+    public PDFOCR(Document document, DocumentSearch documentSearch, FileUtil fileUtil, OcrService ocrService) {
         this.document = document;
         this.documentSearch = documentSearch;
         this.fileUtil = fileUtil;
-        this.dataPath = dataPath;
-        this.language = language;
+        this.ocrService = ocrService;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Runs the OCR and stores the text with the document.
+     *
+     * @throws IOException if the OCR failed or the document was deleted meanwhile
+     * @throws TimeoutException if the document could not be written
+     */
+    public void run() throws IOException, TimeoutException, InterruptedException {
         Thread.currentThread().setName("PDFOCR-" + document.getId());
         logger.info("Start PDF OCR for document " + document.getId());
         if (document.getTextContent() != null) {
-            logger.warn("Document " + document.getId() + " already have text content! This task override it!");
+            logger.debug("Document " + document.getId() + " already have text content, it is merged with the ocr result");
         }
-        File targetFile = fileUtil.getFile(document);
 
-        try (PDDocument pdfDocument = PDDocument.load(targetFile)) {
-
-            PDFRenderer pr = new PDFRenderer(pdfDocument);
-            Tesseract tesseract = new Tesseract();
-            tesseract.setLanguage(language);
-            tesseract.setDatapath(dataPath);
-            StringBuilder stringBuilder = new StringBuilder();
-
-            for (int i = 0; i < pdfDocument.getNumberOfPages(); i++) {
-                BufferedImage bi = pr.renderImageWithDPI(i, 600);
-                stringBuilder.append(tesseract.doOCR(bi)).append("\n");
-            }
-
-            String content = stringBuilder.toString();
+        String content;
+        try (MaterializedFile targetFile = fileUtil.getLocalFile(document)) {
+            content = ocrService.ocr(targetFile.getFile());
+        }
 
-            Optional<Document> optionalDocument = documentSearch.getDocumentById(document.getId());
-            if (optionalDocument.isPresent()) {
-                Document document = optionalDocument.get();
-                if (!content.isBlank()) {
-                    document.setTextContent(content);
-                    try {
-                        documentSearch.createOrReplaceDocument(document);
-                    } catch (TimeoutException | InterruptedException e) {
-                        logger.error("Ran in timeout during document update after ocr update", e);
-                        return;
-                    }
-                    logger.info("Updated document " + this.document.getId() + " with text content.");
-                } else {
-                    logger.debug("PDF OCR dont found content for document " + this.document.getId());
-                }
-            }
-        } catch (IOException | TesseractException e) {
-            e.printStackTrace();
+        if (content.isBlank()) {
+            logger.debug("PDF OCR dont found content for document " + document.getId());
+            return;
         }
 
+        Optional<Document> optionalDocument = documentSearch.getDocumentById(document.getId());
+        Document document;
+        if (optionalDocument.isPresent()) {
+            document = optionalDocument.get();
+        } else if (fileUtil.exists(this.document)) {
+            // A fresh upload whose add meilisearch has not applied yet
+            logger.warn("Document " + this.document.getId() + " is not searchable yet, store the OCR result with the uploaded document");
+            document = this.document;
+        } else {
+            throw new IOException("Document " + this.document.getId() + " was deleted during OCR");
+        }
+        document.setTextContent(content);
+        documentSearch.createOrReplaceDocument(document);
+        logger.info("Updated document " + this.document.getId() + " with text content.");
     }
 }
@@ -0,0 +1,12 @@
+package de.skillkiller.documentdbackend.task;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class PageOcrResult {
+    private final String text;
+    private final int meanConfidence;
+    private final int dpi;
+}
@@ -0,0 +1,40 @@
+package de.skillkiller.documentdbackend.task;
+
+import net.sourceforge.tess4j.Tesseract;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Tesseract engine that keeps its native handle initialised between pages.
+ * {@link Tesseract#doOCR(BufferedImage)} creates and disposes a handle (and loads the trained data) on every call.
+ * Instances are not thread-safe and must be used by one thread at a time.
+ */
+public class PooledTesseract extends Tesseract {
+
+    private boolean initialised = false;
+
+    public PooledTesseract(String dataPath, String language) {
+        setDatapath(dataPath);
+        setLanguage(language);
+    }
+
+    public PageOcrResult ocr(BufferedImage bufferedImage, int dpi) throws IOException {
+        if (!initialised) {
+            init();
+            setTessVariables();
+            initialised = true;
+        }
+        setImage(bufferedImage, null);
+        getAPI().TessBaseAPISetSourceResolution(getHandle(), dpi);
+        String text = getOCRText(null, 1);
+        return new PageOcrResult(text, getAPI().TessBaseAPIMeanTextConf(getHandle()), dpi);
+    }
+
+    public void close() {
+        if (initialised) {
+            dispose();
+            initialised = false;
+        }
+    }
+}
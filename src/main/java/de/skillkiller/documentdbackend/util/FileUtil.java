@@ -1,36 +1,100 @@
 package de.skillkiller.documentdbackend.util;
 
 import de.skillkiller.documentdbackend.entity.Document;
-import de.skillkiller.documentdbackend.search.DocumentSearch;
-import lombok.Getter;
-import org.springframework.beans.factory.annotation.Value;
+import de.skillkiller.documentdbackend.storage.DocumentStore;
+import de.skillkiller.documentdbackend.storage.MaterializedFile;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.util.Optional;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.stream.Stream;
 
+/**
+ * Access to the document files through the configured {@link DocumentStore}.
+ */
 @Service
 public class FileUtil {
 
-    @Getter
-    private final String BASE_DIR;
-    private final DocumentSearch meiliSearch;
+    private static final String UPLOAD_PREFIX = "upload";
+    private final DocumentStore documentStore;
 
-    public FileUtil(@Value("${file.basepath}") String base_dir, DocumentSearch meiliSearch) {
-        BASE_DIR = base_dir;
-        this.meiliSearch = meiliSearch;
+    public FileUtil(DocumentStore documentStore) {
+        this.documentStore = documentStore;
     }
 
-    public File getBaseDirFromUser(String userId) {
-        return new File(BASE_DIR + userId);
+    public String getKey(Document document) {
+        return document.getUserId() + "/" + document.getFilename();
     }
 
-    public File getFile(Document document) {
-        return new File(getBaseDirFromUser(document.getUserId()) + "/" + document.getFilename());
+    public boolean exists(Document document) {
+        return documentStore.exists(getKey(document));
     }
 
-    public Optional<File> getFile(String documentId) {
-        Optional<Document> optionalDocument = meiliSearch.getDocumentById(documentId);
-        return optionalDocument.map(this::getFile);
+    public Resource getResource(Document document) {
+        return documentStore.getResource(getKey(document));
+    }
+
+    /**
+     * Local file of the document, close it after use.
+     */
+    public MaterializedFile getLocalFile(Document document) throws IOException {
+        return documentStore.materialize(getKey(document));
+    }
+
+    public boolean delete(Document document) {
+        return delete(getKey(document));
+    }
+
+    public boolean delete(String key) {
+        return documentStore.delete(key);
+    }
+
+    /**
+     * All stored keys, the stream must be closed.
+     */
+    public Stream<String> listKeys() throws IOException {
+        return documentStore.listKeys();
+    }
+
+    /**
+     * Partial uploads in all staging directories, the stream must be closed.
+     */
+    public Stream<File> listPartialUploads() throws IOException {
+        return documentStore.listPartialFiles()
+                .filter(path -> path.getFileName().toString().startsWith(UPLOAD_PREFIX))
+                .map(Path::toFile);
+    }
+
+    /**
+     * Streams the upload into a partial file inside the staging directory of the store and computes the
+     * SHA-256 hash and size in the same pass. For local stores the staging directory is usually on the same
+     * volume as the final location, so {@link #moveToDocument(StoredFile, Document)} is a rename instead of a second copy.
+     */
+    public StoredFile storePartialFile(String userId, InputStream inputStream) throws IOException {
+        File saveDir = documentStore.getStagingDirectory(userId);
+        File partialFile = File.createTempFile(UPLOAD_PREFIX, DocumentStore.PARTIAL_FILE_SUFFIX, saveDir);
+
+        MessageDigest messageDigest = DigestUtils.getSha256Digest();
+        try (DigestInputStream digestInputStream = new DigestInputStream(new BufferedInputStream(inputStream), messageDigest)) {
+            long size = Files.copy(digestInputStream, partialFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return new StoredFile(partialFile, Hex.encodeHexString(messageDigest.digest()), size);
+        } catch (IOException e) {
+            Files.deleteIfExists(partialFile.toPath());
+            throw e;
+        }
+    }
+
+    public void moveToDocument(StoredFile storedFile, Document document) throws IOException {
+        documentStore.put(getKey(document), storedFile.getFile());
     }
 }
@@ -5,18 +5,39 @@ import com.auth0.jwt.algorithms.Algorithm;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.auth0.jwt.interfaces.JWTVerifier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import de.skillkiller.documentdbackend.entity.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 @Service
 public class JWTUtil {
     private final Algorithm ALGORITHM;
+    private final JWTVerifier verifier;
+    // SHA-256 digests of tokens with a valid signature, so repeated requests with a token skip the HMAC verification
+    private final Cache<HashCode, DecodedJWT> verifiedTokens;
 
-    public JWTUtil(@Value("${jwt.secret}") final String jwtSecret) {
+    public JWTUtil(@Value("${jwt.secret}") final String jwtSecret,
+                   @Value("${jwt.cache.size:10000}") long cacheSize,
+                   @Value("${jwt.cache.ttl:3600}") long cacheTtlSeconds,
+                   MeterRegistry meterRegistry) {
         this.ALGORITHM = Algorithm.HMAC512(jwtSecret);
+        this.verifier = JWT.require(ALGORITHM).build();
+        this.verifiedTokens = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        GuavaCacheMetrics.monitor(meterRegistry, verifiedTokens, "jwt.verified");
     }
 
     public String generateToken(User user) {
@@ -29,10 +50,19 @@ public class JWTUtil {
     }
 
     public DecodedJWT validateToken(String token) {
+        if (token == null) return null;
+        HashCode digest = Hashing.sha256().hashString(token, StandardCharsets.UTF_8);
+        DecodedJWT cachedJWT = verifiedTokens.getIfPresent(digest);
+        if (cachedJWT != null) {
+            if (cachedJWT.getExpiresAt() == null || cachedJWT.getExpiresAt().after(new Date())) return cachedJWT;
+            verifiedTokens.invalidate(digest);
+            return null;
+        }
+
         try {
-            JWTVerifier verifier = JWT.require(ALGORITHM)
-                    .build();
-            return verifier.verify(token);
+            DecodedJWT decodedJWT = verifier.verify(token);
+            verifiedTokens.put(digest, decodedJWT);
+            return decodedJWT;
         } catch (JWTVerificationException | IllegalArgumentException exception) {
             return null;
         }
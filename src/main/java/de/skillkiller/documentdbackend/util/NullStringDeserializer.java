@@ -0,0 +1,24 @@
+package de.skillkiller.documentdbackend.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+import java.io.IOException;
+
+/**
+ * Reads the string {@code "null"} as {@code null}. Meilisearch can not filter for missing facet values,
+ * so empty facets like the company of a document are stored as {@code "null"}.
+ */
+public class NullStringDeserializer extends StdDeserializer<String> {
+
+    public NullStringDeserializer() {
+        super(String.class);
+    }
+
+    @Override
+    public String deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
+        String value = jsonParser.getValueAsString();
+        return "null".equals(value) ? null : value;
+    }
+}
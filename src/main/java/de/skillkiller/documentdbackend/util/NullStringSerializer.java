@@ -0,0 +1,22 @@
+package de.skillkiller.documentdbackend.util;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * Writes {@code null} as the string {@code "null"}, the counterpart of {@link NullStringDeserializer}.
+ */
+public class NullStringSerializer extends StdSerializer<Object> {
+
+    public NullStringSerializer() {
+        super(Object.class);
+    }
+
+    @Override
+    public void serialize(Object value, JsonGenerator jsonGenerator, SerializerProvider serializerProvider) throws IOException {
+        jsonGenerator.writeString("null");
+    }
+}
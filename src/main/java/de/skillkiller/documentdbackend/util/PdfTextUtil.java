@@ -0,0 +1,76 @@
+package de.skillkiller.documentdbackend.util;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public final class PdfTextUtil {
+
+    // Scans often carry a stamped page number or a few stray glyphs, that is no usable text layer
+    private static final int MIN_TEXT_LAYER_CHARACTERS = 10;
+
+    private PdfTextUtil() {
+    }
+
+    /**
+     * Text of every page, index i is page i + 1. Pages without contents have an empty text.
+     */
+    public static List<String> getPageTexts(PDDocument pdfDocument) throws IOException {
+        return new PageTextStripper().getPageTexts(pdfDocument);
+    }
+
+    public static boolean hasTextLayer(String pageText) {
+        int characters = 0;
+        for (int i = 0; i < pageText.length() && characters < MIN_TEXT_LAYER_CHARACTERS; i++) {
+            if (!Character.isWhitespace(pageText.charAt(i))) characters++;
+        }
+        return characters >= MIN_TEXT_LAYER_CHARACTERS;
+    }
+
+    public static String join(List<String> pageTexts) {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String pageText : pageTexts) {
+            stringBuilder.append(pageText);
+            if (!pageText.endsWith("\n")) stringBuilder.append("\n");
+        }
+        return stringBuilder.toString();
+    }
+
+    // Collects the text of every page in a single pass over the document. The stripper skips pages without
+    // contents, so texts are stored by page number instead of appended.
+    private static class PageTextStripper extends PDFTextStripper {
+        private final StringWriter writer = new StringWriter();
+        private List<String> pageTexts;
+
+        private PageTextStripper() throws IOException {
+            super();
+        }
+
+        private List<String> getPageTexts(PDDocument pdfDocument) throws IOException {
+            pageTexts = new ArrayList<>(Collections.nCopies(pdfDocument.getNumberOfPages(), ""));
+            writeText(pdfDocument, writer);
+            return pageTexts;
+        }
+
+        @Override
+        protected void startPage(PDPage page) throws IOException {
+            super.startPage(page);
+            output.flush();
+            writer.getBuffer().setLength(0);
+        }
+
+        @Override
+        protected void endPage(PDPage page) throws IOException {
+            super.endPage(page);
+            output.flush();
+            pageTexts.set(getCurrentPageNo() - 1, writer.toString());
+            writer.getBuffer().setLength(0);
+        }
+    }
+}
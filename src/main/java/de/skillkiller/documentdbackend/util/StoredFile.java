@@ -0,0 +1,14 @@
+package de.skillkiller.documentdbackend.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.File;
+
+@Getter
+@AllArgsConstructor
+public class StoredFile {
+    private final File file;
+    private final String sha256;
+    private final long size;
+}
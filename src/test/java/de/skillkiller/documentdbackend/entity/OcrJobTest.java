@@ -0,0 +1,54 @@
+package de.skillkiller.documentdbackend.entity;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OcrJobTest {
+
+    @Test
+    void journalFileNameRoundtrip() {
+        OcrJob ocrJob = job(OcrJob.Priority.MAIL, 1600000000000L, 42, "a1b2-c3d4");
+
+        OcrJob parsed = OcrJob.fromJournalFileName(ocrJob.getJournalFileName());
+
+        assertThat(parsed.getPriority()).isEqualTo(OcrJob.Priority.MAIL);
+        assertThat(parsed.getEnqueueTime()).isEqualTo(1600000000000L);
+        assertThat(parsed.getSequence()).isEqualTo(42);
+        assertThat(parsed.getDocumentId()).isEqualTo("a1b2-c3d4");
+        assertThat(parsed.getJournalFileName()).isEqualTo(ocrJob.getJournalFileName());
+    }
+
+    @Test
+    void journalFileNamesSortInProcessingOrder() {
+        List<OcrJob> ocrJobs = new ArrayList<>();
+        ocrJobs.add(job(OcrJob.Priority.BACKFILL, 1000L, 0, "c"));
+        ocrJobs.add(job(OcrJob.Priority.INTERACTIVE, 2000L, 2, "b"));
+        ocrJobs.add(job(OcrJob.Priority.INTERACTIVE, 2000L, 1, "a"));
+        ocrJobs.add(job(OcrJob.Priority.MAIL, 999L, 3, "d"));
+
+        List<String> fileNames = new ArrayList<>();
+        for (OcrJob ocrJob : ocrJobs) fileNames.add(ocrJob.getJournalFileName());
+        Collections.sort(fileNames);
+        Collections.sort(ocrJobs);
+
+        for (int i = 0; i < ocrJobs.size(); i++) {
+            assertThat(fileNames.get(i)).isEqualTo(ocrJobs.get(i).getJournalFileName());
+        }
+        assertThat(ocrJobs.get(0).getDocumentId()).isEqualTo("a");
+        assertThat(ocrJobs.get(3).getDocumentId()).isEqualTo("c");
+    }
+
+    private static OcrJob job(OcrJob.Priority priority, long enqueueTime, long sequence, String documentId) {
+        OcrJob ocrJob = new OcrJob();
+        ocrJob.setPriority(priority);
+        ocrJob.setEnqueueTime(enqueueTime);
+        ocrJob.setSequence(sequence);
+        ocrJob.setDocumentId(documentId);
+        return ocrJob;
+    }
+}
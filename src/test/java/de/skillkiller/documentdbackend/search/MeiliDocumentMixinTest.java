@@ -0,0 +1,38 @@
+package de.skillkiller.documentdbackend.search;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.skillkiller.documentdbackend.entity.Document;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MeiliDocumentMixinTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectMapper meiliObjectMapper = objectMapper.copy().addMixIn(Document.class, MeiliDocumentMixin.class);
+
+    @Test
+    void writesMissingCompanyAsNullString() {
+        Document document = new Document();
+
+        JsonNode json = meiliObjectMapper.valueToTree(document);
+
+        assertThat(json.get("company").textValue()).isEqualTo("null");
+        assertThat(document.getCompany()).isNull();
+    }
+
+    @Test
+    void readsNullStringAsMissingCompany() throws Exception {
+        Document document = meiliObjectMapper.readValue("{\"company\":\"null\"}", Document.class);
+
+        assertThat(document.getCompany()).isNull();
+    }
+
+    @Test
+    void keepsApiRepresentationUnchanged() throws Exception {
+        assertThat(objectMapper.valueToTree(new Document()).get("company").isNull()).isTrue();
+        assertThat(objectMapper.readValue("{\"company\":\"null\"}", Document.class).getCompany()).isEqualTo("null");
+        assertThat(meiliObjectMapper.readValue("{\"company\":\"ACME\"}", Document.class).getCompany()).isEqualTo("ACME");
+    }
+}
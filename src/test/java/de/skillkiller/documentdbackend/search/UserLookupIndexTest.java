@@ -0,0 +1,91 @@
+package de.skillkiller.documentdbackend.search;
+
+import de.skillkiller.documentdbackend.entity.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UserLookupIndexTest {
+
+    @Test
+    void isNotReadyBeforeFirstRebuild() {
+        UserLookupIndex userLookupIndex = new UserLookupIndex();
+        userLookupIndex.put(user("1", "Alice", "alice@example.org", "connect1"));
+
+        assertThat(userLookupIndex.isReady()).isFalse();
+
+        userLookupIndex.rebuild(Collections.emptyList(), Collections::emptyMap);
+
+        assertThat(userLookupIndex.isReady()).isTrue();
+    }
+
+    @Test
+    void findsUsersCaseInsensitively() {
+        UserLookupIndex userLookupIndex = new UserLookupIndex();
+        userLookupIndex.rebuild(Collections.singletonList(user("1", "Alice", "Alice@Example.org", "Connect1")), Collections::emptyMap);
+
+        assertThat(userLookupIndex.getUserIdByUsername("ALICE")).contains("1");
+        assertThat(userLookupIndex.getUserIdByMailAddress("alice@example.ORG")).contains("1");
+        assertThat(userLookupIndex.getUserIdByConnectPassword("Connect1")).contains("1");
+        // Connect passwords are secrets and compared exactly
+        assertThat(userLookupIndex.getUserIdByConnectPassword("connect1")).isEmpty();
+        assertThat(userLookupIndex.getUserIdByUsername(null)).isEmpty();
+    }
+
+    @Test
+    void putReplacesOldKeysOfTheUser() {
+        UserLookupIndex userLookupIndex = new UserLookupIndex();
+        userLookupIndex.rebuild(Collections.singletonList(user("1", "alice", "alice@example.org", "connect1")), Collections::emptyMap);
+
+        userLookupIndex.put(user("1", "alicia", "alicia@example.org", "connect2"));
+
+        assertThat(userLookupIndex.getUserIdByUsername("alice")).isEmpty();
+        assertThat(userLookupIndex.getUserIdByMailAddress("alice@example.org")).isEmpty();
+        assertThat(userLookupIndex.getUserIdByConnectPassword("connect1")).isEmpty();
+        assertThat(userLookupIndex.getUserIdByUsername("alicia")).contains("1");
+        assertThat(userLookupIndex.getUserIdByMailAddress("alicia@example.org")).contains("1");
+        assertThat(userLookupIndex.getUserIdByConnectPassword("connect2")).contains("1");
+        assertThat(userLookupIndex.size()).isEqualTo(1);
+    }
+
+    @Test
+    void removeKeepsKeysTakenOverByAnotherUser() {
+        UserLookupIndex userLookupIndex = new UserLookupIndex();
+        userLookupIndex.rebuild(Collections.singletonList(user("1", "alice", "shared@example.org", null)), Collections::emptyMap);
+        userLookupIndex.put(user("2", "bob", "shared@example.org", null));
+
+        userLookupIndex.remove("1");
+
+        assertThat(userLookupIndex.getUserIdByUsername("alice")).isEmpty();
+        assertThat(userLookupIndex.getUserIdByMailAddress("shared@example.org")).contains("2");
+        assertThat(userLookupIndex.size()).isEqualTo(1);
+    }
+
+    @Test
+    void rebuildAppliesRecentWritesOnTop() {
+        UserLookupIndex userLookupIndex = new UserLookupIndex();
+        List<User> indexedUsers = Arrays.asList(user("1", "alice", null, null), user("2", "bob", null, null));
+        Map<String, Optional<User>> recentUsers = new HashMap<>();
+        // Written but not yet applied by meilisearch
+        recentUsers.put("1", Optional.empty());
+        recentUsers.put("3", Optional.of(user("3", "carol", null, null)));
+
+        userLookupIndex.rebuild(indexedUsers, () -> recentUsers);
+
+        assertThat(userLookupIndex.getUserIdByUsername("alice")).isEmpty();
+        assertThat(userLookupIndex.getUserIdByUsername("bob")).contains("2");
+        assertThat(userLookupIndex.getUserIdByUsername("carol")).contains("3");
+        assertThat(userLookupIndex.size()).isEqualTo(2);
+    }
+
+    private static User user(String id, String username, String mailAddress, String connectPassword) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername(username);
+        if (mailAddress != null) user.getMailAddresses().add(mailAddress);
+        user.setConnectPassword(connectPassword);
+        return user;
+    }
+}
@@ -0,0 +1,170 @@
+package de.skillkiller.documentdbackend.service;
+
+import de.skillkiller.documentdbackend.entity.AccessToken;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AccessTokenServiceTest {
+
+    private static final String SECRET = "shared-test-secret";
+
+    @Test
+    void signedTokenIsValidOnEveryNodeWithTheSameSecret() {
+        AccessToken accessToken = signed(SECRET).putToken(token("document1", "user1", 60000));
+
+        Optional<AccessToken> verified = signed(SECRET).isValidAndGet(accessToken.getToken());
+
+        assertThat(verified).isPresent();
+        assertThat(verified.get().getDocumentId()).isEqualTo("document1");
+        assertThat(verified.get().getUserId()).isEqualTo("user1");
+        assertThat(verified.get().getExpire()).isEqualTo(accessToken.getExpire());
+    }
+
+    @Test
+    void signedTokenKeepsIdsContainingSeparators() {
+        AccessTokenService accessTokenService = signed(SECRET);
+        AccessToken accessToken = accessTokenService.putToken(token("doc:1:2", "user:3", 60000));
+
+        Optional<AccessToken> verified = accessTokenService.isValidAndGet(accessToken.getToken());
+
+        assertThat(verified).isPresent();
+        assertThat(verified.get().getDocumentId()).isEqualTo("doc:1:2");
+        assertThat(verified.get().getUserId()).isEqualTo("user:3");
+    }
+
+    @Test
+    void signedTokenOfOtherSecretIsRejected() {
+        AccessToken accessToken = signed("other-secret").putToken(token("document1", "user1", 60000));
+
+        assertThat(signed(SECRET).isValidAndGet(accessToken.getToken())).isEmpty();
+    }
+
+    @Test
+    void tamperedSignedTokenIsRejected() {
+        AccessTokenService accessTokenService = signed(SECRET);
+        AccessToken accessToken = accessTokenService.putToken(token("document1", "user1", 60000));
+        byte[] decoded = Base64.getUrlDecoder().decode(accessToken.getToken());
+        // Flip a bit of the encrypted payload
+        decoded[decoded.length / 2] ^= 1;
+
+        String tampered = Base64.getUrlEncoder().withoutPadding().encodeToString(decoded);
+
+        assertThat(accessTokenService.isValidAndGet(tampered)).isEmpty();
+    }
+
+    @Test
+    void signedTokenDoesNotRevealIds() {
+        AccessToken accessToken = signed(SECRET).putToken(token("document1", "user1", 60000));
+
+        String decoded = new String(Base64.getUrlDecoder().decode(accessToken.getToken()), StandardCharsets.ISO_8859_1);
+
+        assertThat(decoded).doesNotContain("user1").doesNotContain("document1");
+    }
+
+    @Test
+    void signedTokensOfSameDocumentDiffer() {
+        AccessTokenService accessTokenService = signed(SECRET);
+        Date expire = new Date(System.currentTimeMillis() + 60000);
+        AccessToken accessToken = token("document1", "user1", 0);
+        accessToken.setExpire(expire);
+        String first = accessTokenService.putToken(accessToken).getToken();
+        String second = accessTokenService.putToken(accessToken).getToken();
+
+        assertThat(first).isNotEqualTo(second);
+    }
+
+    @Test
+    void malformedSignedTokenIsRejected() {
+        AccessTokenService accessTokenService = signed(SECRET);
+
+        assertThat(accessTokenService.isValidAndGet("not a token")).isEmpty();
+        assertThat(accessTokenService.isValidAndGet("c2hvcnQ")).isEmpty();
+    }
+
+    @Test
+    void expiredSignedTokenIsRejected() {
+        AccessTokenService accessTokenService = signed(SECRET);
+        AccessToken accessToken = accessTokenService.putToken(token("document1", "user1", -1000));
+
+        assertThat(accessTokenService.isValidAndGet(accessToken.getToken())).isEmpty();
+    }
+
+    @Test
+    void signedModeRequiresSecret() {
+        assertThrows(IllegalStateException.class, () -> new AccessTokenService(10, "signed", " ", 100, new SimpleMeterRegistry()));
+    }
+
+    @Test
+    void revocationLastsUntilSecondRotation() {
+        AccessTokenService accessTokenService = signed(SECRET);
+        AccessToken accessToken = accessTokenService.putToken(token("document1", "user1", 60000));
+        AccessToken otherAccessToken = accessTokenService.putToken(token("document2", "user1", 60000));
+
+        accessTokenService.revokeDocument("document1");
+        assertThat(accessTokenService.isValidAndGet(accessToken.getToken())).isEmpty();
+        assertThat(accessTokenService.isValidAndGet(otherAccessToken.getToken())).isPresent();
+
+        accessTokenService.rotateRevocations();
+        assertThat(accessTokenService.isValidAndGet(accessToken.getToken())).isEmpty();
+
+        accessTokenService.rotateRevocations();
+        assertThat(accessTokenService.isValidAndGet(accessToken.getToken())).isPresent();
+    }
+
+    @Test
+    void localTokenIsRemovedOnRevocation() {
+        AccessTokenService accessTokenService = local(10);
+        AccessToken accessToken = accessTokenService.putToken(token("document1", "user1", 60000));
+        assertThat(accessTokenService.isValidAndGet(accessToken.getToken())).contains(accessToken);
+
+        accessTokenService.revokeDocument("document1");
+        accessTokenService.rotateRevocations();
+        accessTokenService.rotateRevocations();
+
+        assertThat(accessTokenService.isValidAndGet(accessToken.getToken())).isEmpty();
+    }
+
+    @Test
+    void expiredLocalTokenIsRejected() {
+        AccessTokenService accessTokenService = local(10);
+        AccessToken accessToken = accessTokenService.putToken(token("document1", "user1", -1000));
+
+        assertThat(accessTokenService.isValidAndGet(accessToken.getToken())).isEmpty();
+    }
+
+    @Test
+    void fullLocalStoreDropsTokensExpiringNext() {
+        AccessTokenService accessTokenService = local(2);
+        AccessToken expiringFirst = accessTokenService.putToken(token("document1", "user1", 30000));
+        AccessToken expiringLast = accessTokenService.putToken(token("document2", "user1", 90000));
+        AccessToken added = accessTokenService.putToken(token("document3", "user1", 60000));
+
+        assertThat(accessTokenService.isValidAndGet(expiringFirst.getToken())).isEmpty();
+        assertThat(accessTokenService.isValidAndGet(expiringLast.getToken())).isPresent();
+        assertThat(accessTokenService.isValidAndGet(added.getToken())).isPresent();
+    }
+
+    private static AccessTokenService signed(String secret) {
+        return new AccessTokenService(10, "signed", secret, 100, new SimpleMeterRegistry());
+    }
+
+    private static AccessTokenService local(int maxSize) {
+        return new AccessTokenService(maxSize, "local", "", 100, new SimpleMeterRegistry());
+    }
+
+    private static AccessToken token(String documentId, String userId, long lifetimeMillis) {
+        AccessToken accessToken = new AccessToken();
+        accessToken.setDocumentId(documentId);
+        accessToken.setUserId(userId);
+        accessToken.setExpire(new Date(System.currentTimeMillis() + lifetimeMillis));
+        return accessToken;
+    }
+}
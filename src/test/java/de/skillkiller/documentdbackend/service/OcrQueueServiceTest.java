@@ -0,0 +1,79 @@
+package de.skillkiller.documentdbackend.service;
+
+import de.skillkiller.documentdbackend.entity.Document;
+import de.skillkiller.documentdbackend.entity.OcrJob;
+import de.skillkiller.documentdbackend.search.DocumentSearch;
+import de.skillkiller.documentdbackend.storage.MaterializedFile;
+import de.skillkiller.documentdbackend.util.FileUtil;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class OcrQueueServiceTest {
+
+    @TempDir
+    Path journalDir;
+
+    @Test
+    void interruptedOcrIsNoFailedAttempt() throws Exception {
+        OcrService ocrService = mock(OcrService.class);
+        CountDownLatch started = new CountDownLatch(1);
+        when(ocrService.ocr(any())).thenAnswer(invocation -> {
+            started.countDown();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            return "";
+        });
+
+        assertJournalUnchangedAfterShutdown(ocrService, started);
+    }
+
+    @Test
+    void wrappedInterruptIsNoFailedAttempt() throws Exception {
+        OcrService ocrService = mock(OcrService.class);
+        CountDownLatch started = new CountDownLatch(1);
+        when(ocrService.ocr(any())).thenAnswer(invocation -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                // Like a library which only keeps the interrupt flag
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            return "";
+        });
+
+        assertJournalUnchangedAfterShutdown(ocrService, started);
+    }
+
+    private void assertJournalUnchangedAfterShutdown(OcrService ocrService, CountDownLatch started) throws Exception {
+        FileUtil fileUtil = mock(FileUtil.class);
+        MaterializedFile materializedFile = mock(MaterializedFile.class);
+        when(materializedFile.getFile()).thenReturn(journalDir.resolve("document.pdf").toFile());
+        when(fileUtil.getLocalFile(any())).thenReturn(materializedFile);
+        OcrQueueService ocrQueueService = new OcrQueueService(mock(DocumentSearch.class), fileUtil, ocrService, journalDir.toString(), 10, 1, 3);
+
+        Document document = new Document();
+        document.setId("document1");
+        ocrQueueService.enqueue(document, OcrJob.Priority.INTERACTIVE);
+        ocrQueueService.startWorkers();
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        ocrQueueService.shutdown();
+
+        File[] journalFiles = journalDir.toFile().listFiles((dir, name) -> name.endsWith(".job"));
+        assertThat(journalFiles).hasSize(1);
+        assertThat(Files.size(journalFiles[0].toPath())).isZero();
+        assertThat(journalDir.resolve("failed")).doesNotExist();
+    }
+}
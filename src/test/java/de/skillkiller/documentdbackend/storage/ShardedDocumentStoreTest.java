@@ -0,0 +1,102 @@
+package de.skillkiller.documentdbackend.storage;
+
+import com.google.common.hash.Hashing;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ShardedDocumentStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void keyIsStoredBelowHashFanout() throws IOException {
+        Path volume = tempDir.resolve("volume");
+        ShardedDocumentStore documentStore = new ShardedDocumentStore(new String[]{volume.toString()}, volume.toString(), false);
+        String key = "user1/document.pdf";
+        String hex = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+
+        documentStore.put(key, stage(documentStore, "user1", "content"));
+
+        Path expected = volume.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4)).resolve("user1").resolve("document.pdf");
+        assertThat(documentStore.resolve(key)).isEqualTo(expected);
+        assertThat(expected).hasContent("content");
+        assertThat(documentStore.exists(key)).isTrue();
+        assertThat(listKeys(documentStore)).containsExactly(key);
+    }
+
+    @Test
+    void keysAreSpreadOverVolumesAndListedOnce() throws IOException {
+        Path volume1 = tempDir.resolve("volume1");
+        Path volume2 = tempDir.resolve("volume2");
+        String[] volumes = {volume1.toString(), volume2.toString()};
+        ShardedDocumentStore documentStore = new ShardedDocumentStore(volumes, tempDir.resolve("legacy").toString(), false);
+
+        for (int i = 0; i < 20; i++) {
+            documentStore.put("user1/document" + i + ".pdf", stage(documentStore, "user1", "content" + i));
+        }
+
+        assertThat(Files.walk(volume1).filter(Files::isRegularFile).count()).isPositive();
+        assertThat(Files.walk(volume2).filter(Files::isRegularFile).count()).isPositive();
+        assertThat(listKeys(documentStore)).hasSize(20).contains("user1/document0.pdf", "user1/document19.pdf");
+        // The mapping only depends on the key and the list of volumes
+        ShardedDocumentStore restartedDocumentStore = new ShardedDocumentStore(volumes, tempDir.resolve("legacy").toString(), false);
+        assertThat(restartedDocumentStore.resolve("user1/document7.pdf")).isEqualTo(documentStore.resolve("user1/document7.pdf"));
+    }
+
+    @Test
+    void partialUploadsAreNoKeys() throws IOException {
+        Path volume = tempDir.resolve("volume");
+        ShardedDocumentStore documentStore = new ShardedDocumentStore(new String[]{volume.toString()}, volume.toString(), false);
+
+        File partialFile = stage(documentStore, "user1", "partial");
+
+        assertThat(listKeys(documentStore)).isEmpty();
+        try (Stream<Path> partialFiles = documentStore.listPartialFiles()) {
+            assertThat(partialFiles.collect(Collectors.toList())).containsExactly(partialFile.toPath());
+        }
+    }
+
+    @Test
+    void legacyFilesAreFoundUntilMigrated() throws IOException {
+        Path volume = tempDir.resolve("volume");
+        Path legacyFile = Files.createDirectories(volume.resolve("user1")).resolve("document.pdf");
+        Files.write(legacyFile, "legacy".getBytes(StandardCharsets.UTF_8));
+        ShardedDocumentStore documentStore = new ShardedDocumentStore(new String[]{volume.toString()}, volume.toString(), true);
+        String key = "user1/document.pdf";
+
+        assertThat(documentStore.exists(key)).isTrue();
+        assertThat(documentStore.getResource(key).getFile().toPath()).isEqualTo(legacyFile);
+        assertThat(listKeys(documentStore)).containsExactly(key);
+
+        documentStore.migrateLegacyFiles();
+
+        assertThat(legacyFile).doesNotExist();
+        assertThat(documentStore.resolve(key)).hasContent("legacy");
+        assertThat(documentStore.getResource(key).getFile().toPath()).isEqualTo(documentStore.resolve(key));
+        assertThat(listKeys(documentStore)).containsExactly(key);
+    }
+
+    private static File stage(DocumentStore documentStore, String userId, String content) throws IOException {
+        File stagedFile = File.createTempFile("upload", DocumentStore.PARTIAL_FILE_SUFFIX, documentStore.getStagingDirectory(userId));
+        Files.write(stagedFile.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return stagedFile;
+    }
+
+    private static List<String> listKeys(DocumentStore documentStore) throws IOException {
+        try (Stream<String> keys = documentStore.listKeys()) {
+            return keys.collect(Collectors.toList());
+        }
+    }
+}
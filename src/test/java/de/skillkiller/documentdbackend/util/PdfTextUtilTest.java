@@ -0,0 +1,52 @@
+package de.skillkiller.documentdbackend.util;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PdfTextUtilTest {
+
+    @Test
+    void blankPageKeepsPageTextsAligned() throws IOException {
+        try (PDDocument pdfDocument = new PDDocument()) {
+            addTextPage(pdfDocument, "First page with a text layer");
+            // A scanned page without any content stream
+            pdfDocument.addPage(new PDPage());
+            addTextPage(pdfDocument, "Third page with a text layer");
+
+            List<String> pageTexts = PdfTextUtil.getPageTexts(pdfDocument);
+
+            assertThat(pageTexts).hasSize(3);
+            assertThat(pageTexts.get(0)).contains("First page");
+            assertThat(pageTexts.get(1)).isEmpty();
+            assertThat(pageTexts.get(2)).contains("Third page");
+            assertThat(PdfTextUtil.hasTextLayer(pageTexts.get(0))).isTrue();
+            assertThat(PdfTextUtil.hasTextLayer(pageTexts.get(1))).isFalse();
+        }
+    }
+
+    @Test
+    void hasTextLayerIgnoresWhitespace() {
+        assertThat(PdfTextUtil.hasTextLayer(" 1 \n 2 \n")).isFalse();
+        assertThat(PdfTextUtil.hasTextLayer("Invoice 2020-0815")).isTrue();
+    }
+
+    private static void addTextPage(PDDocument pdfDocument, String text) throws IOException {
+        PDPage page = new PDPage();
+        pdfDocument.addPage(page);
+        try (PDPageContentStream contentStream = new PDPageContentStream(pdfDocument, page)) {
+            contentStream.beginText();
+            contentStream.setFont(PDType1Font.HELVETICA, 12);
+            contentStream.newLineAtOffset(72, 700);
+            contentStream.showText(text);
+            contentStream.endText();
+        }
+    }
+}